@@ -3,6 +3,8 @@ package com.nathcat.peoplecat_database;
 import com.mysql.cj.jdbc.exceptions.CommunicationsException;
 import com.nathcat.messagecat_database.KeyStore;
 import com.nathcat.messagecat_database.MessageStore;
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -73,6 +75,15 @@ public class Database {
         conn = DriverManager.getConnection((String) config.get("connection_url_peoplecat"), (String) config.get("username"), (String) config.get("password"));
     }
 
+    /**
+     * Close the connection to the MySQL server
+     */
+    public void close() {
+        try {
+            if (conn != null) conn.close();
+        } catch (SQLException ignored) {}
+    }
+
     /**
      * Perform a Select query on the database.
      * @param query The query to be executed
@@ -81,6 +92,9 @@ public class Database {
      * @deprecated Use prepared statements
      */
     public ResultSet Select(String query) throws SQLException {
+        ServerEvents.Jdbc event = new ServerEvents.Jdbc();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.DB);
         try {
             // Create and execute the statement
             Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY);
@@ -104,6 +118,10 @@ public class Database {
             // Return the result set
             return rs;
         }
+        finally {
+            RequestTrace.exit();
+            commit(event, query);
+        }
     }
 
     /**
@@ -113,6 +131,9 @@ public class Database {
      * @deprecated Use prepared statements
      */
     public void Update(String query) throws SQLException {
+        ServerEvents.Jdbc event = new ServerEvents.Jdbc();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.DB);
         try {
             // Create and execute the statement
             Statement stmt = conn.createStatement();
@@ -132,10 +153,15 @@ public class Database {
             // Close the statement
             stmt.close();
         }
+        finally {
+            RequestTrace.exit();
+            commit(event, query);
+        }
     }
 
     /**
-     * Create a prepared SQL statement
+     * Create a prepared SQL statement. Execute it with <code>execute</code> or <code>executeUpdate</code> so that it
+     * is traced.
      * @param q The query to prepare
      * @return The <code>PreparedStatement</code> object
      * @throws SQLException Thrown in case of invalid SQL or some other error
@@ -151,6 +177,56 @@ public class Database {
         }
     }
 
+    /**
+     * Execute a prepared statement. The time it takes is counted towards the database stage of the request being
+     * traced on the calling thread, if there is one, and recorded as a JFR event.
+     * @param stmt The statement
+     * @return True if the statement produced a result set
+     * @throws SQLException Thrown by SQL errors
+     * @see RequestTrace
+     * @see ServerEvents.Jdbc
+     */
+    public static boolean execute(PreparedStatement stmt) throws SQLException {
+        ServerEvents.Jdbc event = new ServerEvents.Jdbc();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.DB);
+        try {
+            return stmt.execute();
+        } finally {
+            RequestTrace.exit();
+            commit(event, stmt);
+        }
+    }
+
+    /**
+     * Execute a prepared statement which does not produce a result set, traced like <code>execute</code>
+     * @param stmt The statement
+     * @return The number of rows changed
+     * @throws SQLException Thrown by SQL errors
+     */
+    public static int executeUpdate(PreparedStatement stmt) throws SQLException {
+        ServerEvents.Jdbc event = new ServerEvents.Jdbc();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.DB);
+        try {
+            return stmt.executeUpdate();
+        } finally {
+            RequestTrace.exit();
+            commit(event, stmt);
+        }
+    }
+
+    /**
+     * Commit a statement's event if it is being recorded. The statement is only turned into text then, since a
+     * prepared statement only gives its SQL through <code>toString</code>.
+     */
+    private static void commit(ServerEvents.Jdbc event, Object query) {
+        if (event.shouldCommit()) {
+            event.sql = String.valueOf(query);
+            event.finish();
+        }
+    }
+
     /**
      * Transform an SQL result set into an array of JSONObjects representing each record.
      * @param rs The result set to transform
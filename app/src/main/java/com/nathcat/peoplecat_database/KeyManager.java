@@ -1,6 +1,8 @@
 package com.nathcat.peoplecat_database;
 
 import com.nathcat.peoplecat_server.Packet;
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import com.sun.tools.javac.Main;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
@@ -42,6 +44,9 @@ public class KeyManager {
      * @return The <code>JSONObject</code> parsed from the key file.
      */
     private static JSONObject getKeyFile() throws IOException {
+        ServerEvents.KeyFileAccess event = new ServerEvents.KeyFileAccess();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.KEYMANAGER);
         try (FileInputStream fis = new FileInputStream(KEY_FILE_PATH)) {
             return (JSONObject) new JSONParser().parse(new String(fis.readAllBytes(), StandardCharsets.UTF_8));
         }
@@ -53,6 +58,13 @@ public class KeyManager {
         catch (ParseException e) {  // This shouldn't happen
             throw new RuntimeException(e);
         }
+        finally {
+            RequestTrace.exit();
+            if (event.shouldCommit()) {
+                event.write = false;
+                event.finish();
+            }
+        }
     }
 
     /**
@@ -60,9 +72,19 @@ public class KeyManager {
      * @param contents The new the key structure
      */
     private static void writeKeyFile(JSONObject contents) throws IOException {
-        FileOutputStream fos = new FileOutputStream(KEY_FILE_PATH);
-        fos.write(contents.toJSONString().getBytes(StandardCharsets.UTF_8));
-        fos.close();
+        ServerEvents.KeyFileAccess event = new ServerEvents.KeyFileAccess();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.KEYMANAGER);
+        try (FileOutputStream fos = new FileOutputStream(KEY_FILE_PATH)) {
+            fos.write(contents.toJSONString().getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            RequestTrace.exit();
+            if (event.shouldCommit()) {
+                event.write = true;
+                event.finish();
+            }
+        }
     }
 
     /**
@@ -1,6 +1,7 @@
 package com.nathcat.peoplecat_database;
 
 import com.nathcat.messagecat_database_entities.Message;
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -58,44 +59,51 @@ public class MessageBox {
      * @return An array of messages contained by the message box
      */
     public static Message[] openMessageBox(int id) throws IOException, FileNotFoundException {
-        String content;
-        FileInputStream fis = new FileInputStream(getMessageBoxPath(id));
-        content = new String(fis.readAllBytes(), StandardCharsets.UTF_8);
-        fis.close();
-
-        // We expect a JSONArray here
-        JSONArray messages;
+        ServerEvents.MessageBoxAccess event = new ServerEvents.MessageBoxAccess();
+        event.begin();
+        Message[] result = null;
         try {
-            messages = (JSONArray) new JSONParser().parse(content);
-        }
-        catch (ParseException e) {
-            throw new RuntimeException("Message box for chat " + id + " has invalid JSON syntax.");
-        }
+            String content;
+            FileInputStream fis = new FileInputStream(getMessageBoxPath(id));
+            content = new String(fis.readAllBytes(), StandardCharsets.UTF_8);
+            fis.close();
 
-        // Purge the existing messages for messages which should be deleted.
-        ArrayList<Message> purgedMessages = new ArrayList<>();
-        long timeValidFrom = new Date().getTime() - 86_400_000;  // The current time subtract 24 hours
-        messages.forEach((Object p) -> {
-            if (p.getClass() != JSONObject.class) {
-                throw new RuntimeException("An element of message box array is not a JSONObject!");
+            // We expect a JSONArray here
+            JSONArray messages;
+            try {
+                messages = (JSONArray) new JSONParser().parse(content);
+            }
+            catch (ParseException e) {
+                throw new RuntimeException("Message box for chat " + id + " has invalid JSON syntax.");
             }
 
-            JSONObject obj = (JSONObject) p;
-            Message m = new Message(
-                    Math.toIntExact((long) obj.get("senderId")),
-                    Math.toIntExact((long) obj.get("chatId")),
-                    (long) obj.get("timeSent"),
-                    obj.get("content")
-            );
+            // Purge the existing messages for messages which should be deleted.
+            ArrayList<Message> purgedMessages = new ArrayList<>();
+            long timeValidFrom = new Date().getTime() - 86_400_000;  // The current time subtract 24 hours
+            messages.forEach((Object p) -> {
+                if (p.getClass() != JSONObject.class) {
+                    throw new RuntimeException("An element of message box array is not a JSONObject!");
+                }
 
-            if (m.TimeSent >= timeValidFrom) {
-                purgedMessages.add(m);
-            }
-        });
+                Message m = messageFromJSON((JSONObject) p);
+
+                if (m.TimeSent >= timeValidFrom) {
+                    purgedMessages.add(m);
+                }
+            });
 
-        Message[] result = purgedMessages.toArray(new Message[0]);
-        updateMessageBox(id, result);
-        return result;
+            result = purgedMessages.toArray(new Message[0]);
+            updateMessageBox(id, result);
+            return result;
+        }
+        finally {
+            if (event.shouldCommit()) {
+                event.chatId = id;
+                event.write = false;
+                event.messages = result == null ? 0 : result.length;
+                event.finish();
+            }
+        }
     }
 
     /**
@@ -104,17 +112,43 @@ public class MessageBox {
      * @param messages The array o messages to write into the message box
      */
     public static void updateMessageBox(int id, Message[] messages) throws IOException {
-        JSONArray box = new JSONArray();
+        ServerEvents.MessageBoxAccess event = new ServerEvents.MessageBoxAccess();
+        event.begin();
+        try {
+            JSONArray box = new JSONArray();
+
+            for (Message m : messages) {
+                box.add(messageToJSON(m));
+            }
 
-        for (Message m : messages) {
-            box.add(messageToJSON(m));
+            FileOutputStream fos = new FileOutputStream(getMessageBoxPath(id));
+            fos.write(
+              box.toJSONString().getBytes(StandardCharsets.UTF_8)
+            );
+            fos.close();
         }
+        finally {
+            if (event.shouldCommit()) {
+                event.chatId = id;
+                event.write = true;
+                event.messages = messages.length;
+                event.finish();
+            }
+        }
+    }
 
-        FileOutputStream fos = new FileOutputStream(getMessageBoxPath(id));
-        fos.write(
-          box.toJSONString().getBytes(StandardCharsets.UTF_8)
+    /**
+     * Read a message from the JSON produced by <code>messageToJSON</code>
+     * @param obj The JSON form of the message
+     * @return The message
+     */
+    public static Message messageFromJSON(JSONObject obj) {
+        return new Message(
+                Math.toIntExact((long) obj.get("senderId")),
+                Math.toIntExact((long) obj.get("chatId")),
+                (long) obj.get("timeSent"),
+                obj.get("content")
         );
-        fos.close();
     }
 
     public static JSONObject messageToJSON(Message m) {
@@ -0,0 +1,203 @@
+package com.nathcat.peoplecat_diagnostics;
+
+/**
+ * <p>Measures how much of a request's time is spent in each of the services it calls.</p>
+ * <p>
+ *     A trace is started on the thread handling a request, and code which calls out to a service marks the call with
+ *     <code>enter</code> and <code>exit</code>, always in a <code>finally</code> block so a failing call still closes
+ *     its stage. Time is given to the innermost open stage, so a database query made while sending a push
+ *     notification counts towards the database rather than the push, and the stages never add up to more than the
+ *     request took. Whatever is left over was spent in the packet handler itself.
+ * </p>
+ * <p>
+ *     Each thread reuses a single trace, and marking a stage on a thread which is not tracing a request only costs a
+ *     thread local lookup, so stages can be marked in shared code such as <code>Database</code> without checking who
+ *     is calling it.
+ * </p>
+ * <p>
+ *     A trace also records which request the thread is handling, its packet type, the user who sent it and the chat
+ *     it concerns once that is known, so that events raised deep inside shared code can say which request they
+ *     belong to. This is kept for every request, whether or not its stages are being timed.
+ * </p>
+ */
+public final class RequestTrace {
+    /**
+     * A service a request may spend time in
+     */
+    public enum Stage {
+        DB, AUTHCAT, MESSAGEBOX, KEYMANAGER, CLUSTER, FANOUT, PUSH;
+
+        private final String field = name().toLowerCase();
+    }
+
+    private static final int MAX_DEPTH = 16;
+    private static final Stage[] STAGES = Stage.values();
+    private static final ThreadLocal<RequestTrace> current = ThreadLocal.withInitial(RequestTrace::new);
+
+    private boolean active = false;
+    private boolean timed = false;
+    private int packetType = -1;
+    private int userId = -1;
+    private int chatId = -1;
+    private final long[] nanos = new long[STAGES.length];
+    private final int[] calls = new int[STAGES.length];
+    private final Stage[] stack = new Stage[MAX_DEPTH];
+    private int depth = 0;
+    private long lastSwitch;
+
+    private RequestTrace() {}
+
+    /**
+     * Start tracing a request on the current thread
+     * @param packetType The type of the request sequence
+     * @param userId The ID of the user the connection is authenticated as, or -1
+     * @param timed True if the time spent in each stage should be measured
+     * @return The thread's trace
+     */
+    public static RequestTrace begin(int packetType, int userId, boolean timed) {
+        RequestTrace t = current.get();
+        t.active = true;
+        t.timed = timed;
+        t.packetType = packetType;
+        t.userId = userId;
+        t.chatId = -1;
+        t.depth = 0;
+        if (timed) {
+            for (int i = 0; i < t.nanos.length; i++) {
+                t.nanos[i] = 0;
+                t.calls[i] = 0;
+            }
+        }
+
+        return t;
+    }
+
+    /**
+     * Stop tracing, the trace's stages can still be read until the next trace begins on this thread
+     */
+    public void end() {
+        active = false;
+        timed = false;
+    }
+
+    /**
+     * @return The trace of the request being handled on the current thread, or null if there is none
+     */
+    public static RequestTrace active() {
+        RequestTrace t = current.get();
+        return t.active ? t : null;
+    }
+
+    /**
+     * Record which chat the request being handled on the current thread concerns, if there is one
+     * @param chatId The ID of the chat
+     */
+    public static void chat(int chatId) {
+        RequestTrace t = current.get();
+        if (t.active) t.chatId = chatId;
+    }
+
+    /**
+     * @return The type of the request sequence
+     */
+    public int packetType() {
+        return packetType;
+    }
+
+    /**
+     * @return The ID of the user who sent the request, or -1 if the connection was not authenticated
+     */
+    public int userId() {
+        return userId;
+    }
+
+    /**
+     * @return The ID of the chat the request concerns, or -1 if it is not known
+     */
+    public int chatId() {
+        return chatId;
+    }
+
+    /**
+     * Mark the start of a call to a service
+     * @param stage The service
+     */
+    public static void enter(Stage stage) {
+        RequestTrace t = current.get();
+        if (!t.timed) return;
+
+        long now = System.nanoTime();
+        if (t.depth > 0 && t.depth <= MAX_DEPTH) t.nanos[t.stack[t.depth - 1].ordinal()] += now - t.lastSwitch;
+        if (t.depth < MAX_DEPTH) t.stack[t.depth] = stage;
+        t.depth++;
+        t.lastSwitch = now;
+    }
+
+    /**
+     * Mark the end of the call most recently entered
+     */
+    public static void exit() {
+        RequestTrace t = current.get();
+        if (!t.timed || t.depth == 0) return;
+
+        long now = System.nanoTime();
+        t.depth--;
+        if (t.depth < MAX_DEPTH) {
+            Stage stage = t.stack[t.depth];
+            t.nanos[stage.ordinal()] += now - t.lastSwitch;
+            t.calls[stage.ordinal()]++;
+        }
+        t.lastSwitch = now;
+    }
+
+    /**
+     * @param stage A service
+     * @return The time spent in the service, in nanoseconds
+     */
+    public long nanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    /**
+     * @param stage A service
+     * @return The number of calls made to the service
+     */
+    public int calls(Stage stage) {
+        return calls[stage.ordinal()];
+    }
+
+    /**
+     * Describe the trace as log fields
+     * @param totalNanos How long the whole request took
+     * @return Alternating keys and values, giving milliseconds and calls for every service which was called, and the
+     *         milliseconds left over for the handler itself
+     */
+    public Object[] fields(long totalNanos) {
+        int used = 0;
+        for (int c : calls) if (c > 0) used++;
+
+        Object[] fields = new Object[4 + used * 4];
+        fields[0] = "totalMs";
+        fields[1] = millis(totalNanos);
+
+        long attributed = 0;
+        int f = 2;
+        for (Stage stage : STAGES) {
+            if (calls[stage.ordinal()] == 0) continue;
+
+            attributed += nanos[stage.ordinal()];
+            fields[f++] = stage.field + "Ms";
+            fields[f++] = millis(nanos[stage.ordinal()]);
+            fields[f++] = stage.field + "Calls";
+            fields[f++] = calls[stage.ordinal()];
+        }
+
+        fields[f++] = "handlerMs";
+        fields[f] = millis(Math.max(0, totalNanos - attributed));
+        return fields;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(java.util.Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,160 @@
+package com.nathcat.peoplecat_diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>The events the server emits to Java Flight Recorder.</p>
+ * <p>
+ *     Each event times one piece of work, such as decoding a packet, handling a request, or a call to one of the
+ *     services the server depends on, and carries the packet type, user ID and chat ID of the request it was done
+ *     for, so a recording can be filtered down to one user, one chat or one kind of request. These are taken from
+ *     the thread's <code>RequestTrace</code>, and are -1 when the work was not done for a request or the value is
+ *     not known.
+ * </p>
+ * <p>
+ *     Events are used like so, and cost nothing beyond creating the event object while no recording has them
+ *     enabled, since <code>shouldCommit</code> is false and nothing else is filled in:
+ * </p>
+ * <pre>
+ *     ServerEvents.KeyFileAccess event = new ServerEvents.KeyFileAccess();
+ *     event.begin();
+ *     try {
+ *         ...
+ *     } finally {
+ *         if (event.shouldCommit()) {
+ *             event.write = false;
+ *             event.finish();
+ *         }
+ *     }
+ * </pre>
+ * <p>
+ *     Record them with <code>-XX:StartFlightRecording</code> or <code>jcmd &lt;pid&gt; JFR.start</code>, they are
+ *     found under the PeopleCat category.
+ * </p>
+ * @see RequestTrace
+ */
+public final class ServerEvents {
+    private ServerEvents() {}
+
+    /**
+     * The fields every event shares
+     */
+    @Category("PeopleCat")
+    @StackTrace(false)
+    public abstract static class RequestEvent extends Event {
+        @Label("Packet Type")
+        @Description("The type of the request this was done for")
+        public int packetType = -1;
+
+        @Label("User ID")
+        @Description("The user who sent the request")
+        public int userId = -1;
+
+        @Label("Chat ID")
+        @Description("The chat the request concerns")
+        public int chatId = -1;
+
+        /**
+         * Fill in the request from the current thread's trace, keeping any chat ID already set, and commit the event.
+         * Only call this once <code>shouldCommit</code> has returned true.
+         */
+        public void finish() {
+            RequestTrace t = RequestTrace.active();
+            if (t != null) {
+                packetType = t.packetType();
+                userId = t.userId();
+                if (chatId == -1) chatId = t.chatId();
+            }
+
+            commit();
+        }
+    }
+
+    @Name("com.nathcat.peoplecat.PacketDecode")
+    @Label("Packet Decode")
+    @Description("A packet's payload was decoded")
+    public static class PacketDecode extends RequestEvent {
+        @Label("Codec")
+        public String codec;
+
+        @Label("Length")
+        @DataAmount
+        public int length;
+    }
+
+    @Name("com.nathcat.peoplecat.PacketHandle")
+    @Label("Packet Handle")
+    @Description("A request sequence was passed to the packet handler")
+    public static class PacketHandle extends RequestEvent {
+        @Label("Packets")
+        @Description("The number of packets in the request sequence")
+        public int packets;
+
+        @Label("Error")
+        @Description("True if handling failed or the response was an error packet")
+        public boolean error;
+    }
+
+    @Name("com.nathcat.peoplecat.Jdbc")
+    @Label("JDBC Statement")
+    @Description("A statement was executed on the database")
+    @Category({ "PeopleCat", "Dependencies" })
+    public static class Jdbc extends RequestEvent {
+        @Label("SQL")
+        public String sql;
+    }
+
+    @Name("com.nathcat.peoplecat.AuthCat")
+    @Label("AuthCat Request")
+    @Description("A request was sent to AuthCat")
+    @Category({ "PeopleCat", "Dependencies" })
+    public static class AuthCatRequest extends RequestEvent {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("com.nathcat.peoplecat.MessageBox")
+    @Label("Message Box Access")
+    @Description("A chat's message box was read from or written to disk")
+    @Category({ "PeopleCat", "Dependencies" })
+    public static class MessageBoxAccess extends RequestEvent {
+        @Label("Write")
+        @Description("True if the box was updated, false if it was opened")
+        public boolean write;
+
+        @Label("Messages")
+        public int messages;
+    }
+
+    @Name("com.nathcat.peoplecat.KeyFile")
+    @Label("Key File Access")
+    @Description("The key manager's key file was read or written")
+    @Category({ "PeopleCat", "Dependencies" })
+    public static class KeyFileAccess extends RequestEvent {
+        @Label("Write")
+        @Description("True if the file was written, false if it was read")
+        public boolean write;
+    }
+
+    @Name("com.nathcat.peoplecat.PushSend")
+    @Label("Push Send")
+    @Description("A user's push subscriptions were looked up and a notification handed to the push service for each")
+    @Category({ "PeopleCat", "Dependencies" })
+    public static class PushSend extends RequestEvent {
+        @Label("Recipient")
+        @Description("The user the notification was sent to")
+        public int recipient;
+
+        @Label("Subscriptions")
+        public int subscriptions;
+    }
+}
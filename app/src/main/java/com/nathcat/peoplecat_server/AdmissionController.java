@@ -0,0 +1,252 @@
+package com.nathcat.peoplecat_server;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Decides whether a newly accepted connection may proceed, before any TLS or websocket handshake work is done for
+ * it.</p>
+ * <p>
+ *     Each remote address has a token bucket which refills at a fixed rate up to a maximum burst, and every connection
+ *     from the address takes a token. IPv6 addresses share a bucket with the rest of their /64, since a single client
+ *     is usually given a whole /64 and can pick any address in it. On top of this, the total number of open
+ *     connections, counted from the moment they are accepted until they are closed, is limited. The per address
+ *     limit is only applied when a rate is given, since every client behind a reverse proxy shares one address.
+ * </p>
+ * <p>
+ *     The buckets are stored in an open addressing hash table made of two arrays of longs. Rather than a token count
+ *     and a timestamp, each bucket stores the time at which it will next be full again (the "theoretical arrival time"
+ *     of the generic cell rate algorithm), which is equivalent but needs a single value. A bucket whose time has passed
+ *     is full, so is no different from having no bucket at all, and every admission checks a few slots of the table
+ *     and removes any such buckets it finds. The table never grows. If it is full, addresses without a bucket are
+ *     admitted untracked rather than refused, since the global limit still applies to them.
+ * </p>
+ */
+public class AdmissionController {
+    /**
+     * Held by an admitted connection until it is closed. Releasing a lease more than once has no effect, so every
+     * path which closes a connection may release it.
+     */
+    public final class Lease {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease() {}
+
+        public void release() {
+            if (released.compareAndSet(false, true)) open.decrementAndGet();
+        }
+    }
+
+    /**
+     * Marks an unused slot of the table. An IPv6 /64 which happens to have this value is moved to the next value,
+     * this prefix is not in use.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+    /**
+     * Number of slots checked for idle buckets on each admission
+     */
+    private static final int CLEANUP_STEPS = 4;
+
+    /**
+     * Time between tokens in nanoseconds, or 0 if the rate is not limited
+     */
+    private final long interval;
+    /**
+     * How far a bucket's time may run ahead of the current time, which is the burst size less one token
+     */
+    private final long tolerance;
+    private final int maxConnections;
+    private final AtomicInteger open = new AtomicInteger(0);
+    private volatile boolean refusingAll = false;
+
+    private final long[] keys;
+    private final long[] times;
+    private final int shift;
+    private final int maxSize;
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private int size = 0;
+    private int cleanupCursor = 0;
+
+    /**
+     * Number of connections admitted
+     */
+    public final AtomicLong admitted = new AtomicLong();
+    /**
+     * Number of connections refused because their address had no tokens left
+     */
+    public final AtomicLong rejectedRate = new AtomicLong();
+    /**
+     * Number of connections refused because the server already had the maximum number of open connections
+     */
+    public final AtomicLong rejectedFull = new AtomicLong();
+    /**
+     * Number of connections admitted without a bucket because the table was full
+     */
+    public final AtomicLong untracked = new AtomicLong();
+
+    /**
+     * Create a new admission controller
+     * @param ratePerSecond The number of connections per second each address may make, or 0 for no limit
+     * @param burst The number of connections an address may make at once after being idle
+     * @param maxConnections The maximum number of open connections
+     * @param capacity The number of slots in the bucket table, rounded up to a power of two. At most three quarters
+     *                 of them are used.
+     */
+    public AdmissionController(double ratePerSecond, int burst, int maxConnections, int capacity) {
+        interval = ratePerSecond <= 0 ? 0 : (long) (1_000_000_000L / ratePerSecond);
+        tolerance = interval * (Math.max(1, burst) - 1);
+        this.maxConnections = maxConnections;
+
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(16, capacity) - 1);
+        shift = 64 - bits;
+        keys = new long[1 << bits];
+        times = new long[1 << bits];
+        Arrays.fill(keys, EMPTY);
+        maxSize = keys.length / 4 * 3;
+    }
+
+    /**
+     * Decide whether a connection from the given address may proceed
+     * @param address The remote address of the connection
+     * @return A lease which must be released when the connection is closed, or null if the connection must be refused
+     */
+    public Lease admit(InetAddress address) {
+        if (refusingAll) {
+            rejectedFull.incrementAndGet();
+            return null;
+        }
+
+        if (interval != 0 && !takeToken(keyOf(address), System.nanoTime())) {
+            rejectedRate.incrementAndGet();
+            return null;
+        }
+
+        if (open.incrementAndGet() > maxConnections) {
+            open.decrementAndGet();
+            rejectedFull.incrementAndGet();
+            return null;
+        }
+
+        admitted.incrementAndGet();
+        return new Lease();
+    }
+
+    /**
+     * Refuse every connection from now on, used when the server is shutting down
+     */
+    public void refuseAll() {
+        refusingAll = true;
+    }
+
+    /**
+     * @return The number of connections which have been admitted and not yet released
+     */
+    public int openConnections() {
+        return open.get();
+    }
+
+    /**
+     * @return The number of addresses which currently have a bucket
+     */
+    public synchronized int trackedAddresses() {
+        return size;
+    }
+
+    /**
+     * Get the bucket key of an address, the whole address for IPv4 and the /64 prefix for IPv6
+     */
+    private static long keyOf(InetAddress address) {
+        byte[] b = address.getAddress();
+        long key = 0;
+        if (b.length == 4) {
+            // Outside of the IPv6 address space in use, so IPv4 keys cannot collide with IPv6 ones
+            long ip = ((b[0] & 0xFFL) << 24) | ((b[1] & 0xFFL) << 16) | ((b[2] & 0xFFL) << 8) | (b[3] & 0xFFL);
+            key = 0xFFFF_FFFF_0000_0000L | ip;
+        }
+        else {
+            for (int i = 0; i < 8; i++) key = (key << 8) | (b[i] & 0xFF);
+        }
+
+        return key == EMPTY ? EMPTY + 1 : key;
+    }
+
+    private int home(long key) {
+        return (int) (((key ^ seed) * 0x9E37_79B9_7F4A_7C15L) >>> shift);
+    }
+
+    /**
+     * Take a token from the bucket for the given key, creating the bucket if there is none
+     * @return True if a token was available
+     */
+    private synchronized boolean takeToken(long key, long now) {
+        cleanup(now);
+
+        int mask = keys.length - 1;
+        int i = home(key);
+        while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+
+        if (keys[i] == EMPTY) {
+            if (size >= maxSize) {
+                untracked.incrementAndGet();
+                return true;
+            }
+
+            keys[i] = key;
+            times[i] = now + interval;
+            size++;
+            return true;
+        }
+
+        long tat = Math.max(times[i], now);
+        if (tat - now > tolerance) return false;
+
+        times[i] = tat + interval;
+        return true;
+    }
+
+    /**
+     * Remove any full buckets from the next few slots of the table. Must hold the lock on this controller.
+     */
+    private void cleanup(long now) {
+        int mask = keys.length - 1;
+        for (int step = 0; step < CLEANUP_STEPS && size > 0; step++) {
+            int i = cleanupCursor;
+            if (keys[i] != EMPTY && times[i] - now <= 0) {
+                // Removal may shift another bucket into this slot, so look at the same slot again next time
+                removeAt(i);
+            }
+            else {
+                cleanupCursor = (i + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Remove the bucket in a slot, shifting back any later buckets in the same run which would otherwise no longer
+     * be found from their home slot
+     */
+    private void removeAt(int i) {
+        int mask = keys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY) break;
+
+            // A bucket may fill the gap unless its home slot lies cyclically within (i, j]
+            int h = home(keys[j]);
+            boolean stays = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                times[i] = times[j];
+                i = j;
+            }
+        }
+
+        keys[i] = EMPTY;
+        size--;
+    }
+}
@@ -0,0 +1,62 @@
+package com.nathcat.peoplecat_server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.drafts.Draft;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Wraps the websocket server factory in use so that every accepted connection passes through the server's
+ * <code>AdmissionController</code> before its TLS and websocket handshakes begin. Refused connections are closed by
+ * the websocket server as soon as they are accepted. Admitted connections carry their lease as the websocket's
+ * attachment, and <code>WebSocketHandler</code> releases it once the connection is closed.
+ */
+public class AdmittingWebSocketServerFactory implements WebSocketServerFactory {
+    private final WebSocketServerFactory factory;
+    private final AdmissionController admission;
+
+    public AdmittingWebSocketServerFactory(WebSocketServerFactory factory, AdmissionController admission) {
+        this.factory = factory;
+        this.admission = admission;
+    }
+
+    @Override
+    public WebSocketImpl createWebSocket(WebSocketAdapter a, Draft d) {
+        return factory.createWebSocket(a, d);
+    }
+
+    @Override
+    public WebSocketImpl createWebSocket(WebSocketAdapter a, List<Draft> drafts) {
+        return factory.createWebSocket(a, drafts);
+    }
+
+    @Override
+    public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) throws IOException {
+        AdmissionController.Lease lease = admission.admit(channel.socket().getInetAddress());
+        if (lease == null) throw new IOException("Connection refused by admission control");
+
+        // The websocket server attaches the new websocket to its key before wrapping the channel
+        if (key.attachment() instanceof WebSocket ws) ws.setAttachment(lease);
+        else lease.release();
+
+        try {
+            return factory.wrapChannel(channel, key);
+
+        } catch (IOException | RuntimeException e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        factory.close();
+    }
+}
@@ -0,0 +1,458 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Writes log events to a file from a background thread, so threads which log never wait for the disk.</p>
+ * <p>
+ *     Events are placed in a fixed size ring of slots. A thread claims a slot with a single compare and set on the
+ *     ring's head, fills it in, then publishes it by setting the slot's sequence number, so logging never takes a
+ *     lock. If the ring is full the event is dropped and counted rather than making the caller wait, and the writer
+ *     notes how many events were lost once it catches up.
+ * </p>
+ * <p>
+ *     The writer thread formats events into a buffer and writes the buffer to a <code>FileChannel</code> whenever it
+ *     fills up or the ring runs empty. The file is rotated once it reaches a size limit or has been open for a set
+ *     time, and the oldest rotated files are deleted.
+ * </p>
+ * <p>
+ *     Events below the log's level are discarded before they reach the ring. Callers which build a message or fields
+ *     should check <code>isEnabled</code> first, so a disabled event costs nothing but the check.
+ * </p>
+ * <h3>Format</h3>
+ * <p>
+ *     Each event is a line holding its time in UTC, its level, its source, its message, then any fields as
+ *     <code>key=value</code> pairs, quoting values which contain spaces. Sources and field values are only turned into
+ *     strings by the writer thread, so they must not change after they are logged.
+ * </p>
+ * <pre>2026-10-18T09:14:03.512Z TRACE Handler 41: Received packet type=7 final=true length=58 data="{...}"</pre>
+ */
+public class AsyncLog {
+    /**
+     * The importance of an event
+     */
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR }
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final long IDLE_PARK_NANOS = 100_000_000;
+    private static final long ROTATE_RETRY_MILLIS = 60_000;
+    private static final Object[] NO_FIELDS = new Object[0];
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * A slot in the ring. A slot is free for the producer at position <code>p</code> when its sequence is
+     * <code>p</code>, and holds a published event for the writer when its sequence is <code>p + 1</code>.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        long time;
+        Level level;
+        Object source;
+        String message;
+        Object[] fields;
+    }
+
+    private final Path path;
+    private final long maxBytes;
+    private final long rotateMillis;
+    private final int keepFiles;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The next position the writer will read, only used by the writer thread
+     */
+    private long tail = 0;
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0;
+    private final Thread writer;
+    private volatile boolean writerParked = false;
+    private volatile boolean closed = false;
+    private volatile Level level = Level.INFO;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final StringBuilder line = new StringBuilder(256);
+    private FileChannel channel;
+    private long fileBytes;
+    private long openedAt;
+    /**
+     * After a failed rotation, the time before which rotating is not tried again
+     */
+    private long rotateRetryAt = 0;
+
+    /**
+     * @param path The file to write to, rotated files have a number appended to this path
+     * @param capacity The number of events the ring can hold, rounded up to a power of two
+     * @param maxBytes The size at which the file is rotated, or 0 to never rotate on size
+     * @param rotateMillis How long the file is written to before it is rotated, or 0 to never rotate on time
+     * @param keepFiles The number of rotated files to keep
+     */
+    public AsyncLog(Path path, int capacity, long maxBytes, long rotateMillis, int keepFiles) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.rotateMillis = rotateMillis;
+        this.keepFiles = Math.max(0, keepFiles);
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new Slot[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+
+        writer = new Thread(this::writeLoop, "LogWriter");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Open the log file and start the writer thread
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    public void start() throws IOException {
+        open();
+        writer.start();
+    }
+
+    /**
+     * @return The lowest level of event which is logged
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level The lowest level of event to log
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param level The level of an event
+     * @return True if events at the level are logged
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Log an event if its level is enabled
+     * @param level The level of the event
+     * @param source What the event comes from, such as a connection handler
+     * @param message The message
+     * @param fields Alternating keys and values
+     * @return False if the event was not logged
+     */
+    public boolean log(Level level, Object source, String message, Object... fields) {
+        return isEnabled(level) && publish(level, source, message, fields);
+    }
+
+    /**
+     * Log an event whatever the log's level, used for events which were asked for individually, such as packet
+     * traces
+     * @param level The level of the event
+     * @param source What the event comes from, such as a connection handler
+     * @param message The message
+     * @param fields Alternating keys and values
+     * @return False if the event was dropped because the ring was full or the log is closed
+     */
+    public boolean publish(Level level, Object source, String message, Object... fields) {
+        if (closed) return false;
+
+        long position = head.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) break;
+                position = head.get();
+            }
+            else if (difference < 0) {
+                // The writer has not freed this slot since the last time round the ring
+                dropped.increment();
+                return false;
+            }
+            else {
+                position = head.get();
+            }
+        }
+
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.source = source;
+        slot.message = message;
+        slot.fields = fields == null ? NO_FIELDS : fields;
+        slot.sequence = position + 1;
+
+        if (writerParked) LockSupport.unpark(writer);
+        return true;
+    }
+
+    /**
+     * @return The number of events dropped because the ring was full
+     */
+    public long droppedEvents() {
+        return dropped.sum();
+    }
+
+    /**
+     * Create a stream which logs each line written to it as an event, used to capture <code>System.out</code> and
+     * <code>System.err</code>
+     * @param source The source of the events
+     * @param level The level of the events
+     * @return The stream
+     */
+    public PrintStream stream(String source, Level level) {
+        return new PrintStream(new LineStream(source, level), true, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write every event already logged, then stop the writer and close the file
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                if (drainRing() > 0) continue;
+
+                reportDropped();
+                flush();
+                if (closed) break;
+
+                writerParked = true;
+                // Check again in case an event was published before the flag was seen
+                if (slots[(int) tail & mask].sequence != tail + 1) LockSupport.parkNanos(IDLE_PARK_NANOS);
+                writerParked = false;
+
+                if (rotateMillis > 0 && System.currentTimeMillis() - openedAt >= rotateMillis) rotate();
+            } catch (IOException e) {
+                // There is nowhere left to log this, so keep going and hope the disk recovers
+                buffer.clear();
+                if (!channel.isOpen()) {
+                    try {
+                        open();
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        try {
+            flush();
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Write every published event to the buffer
+     * @return The number of events written
+     */
+    private int drainRing() throws IOException {
+        int count = 0;
+        while (true) {
+            Slot slot = slots[(int) tail & mask];
+            if (slot.sequence != tail + 1) return count;
+
+            format(slot.time, slot.level, slot.source, slot.message, slot.fields);
+            slot.source = null;
+            slot.message = null;
+            slot.fields = null;
+            slot.sequence = tail + slots.length;
+            tail++;
+            count++;
+        }
+    }
+
+    private void reportDropped() throws IOException {
+        long total = dropped.sum();
+        if (total == droppedReported) return;
+
+        format(System.currentTimeMillis(), Level.WARN, "Log", "Log ring was full, events were dropped", new Object[] { "dropped", total - droppedReported });
+        droppedReported = total;
+    }
+
+    private void format(long time, Level level, Object source, String message, Object[] fields) throws IOException {
+        line.setLength(0);
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(time), line);
+        line.append(' ').append(level).append(' ').append(source).append(": ").append(message);
+
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(String.valueOf(fields[i + 1]));
+        }
+
+        line.append('\n');
+        write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendValue(String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                default -> line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (maxBytes > 0 && fileBytes + buffer.position() + bytes.length > maxBytes && fileBytes + buffer.position() > 0) {
+            rotate();
+        }
+
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            if (bytes.length > buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+
+        buffer.put(bytes);
+    }
+
+    private void flush() throws IOException {
+        if (buffer.position() == 0) return;
+
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            fileBytes += channel.write(bytes);
+        }
+    }
+
+    private void open() throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Close the current file and move it, and every older file, along by one number. If the files cannot be moved,
+     * the current file is opened again and appended to, and rotating is not tried again for a while.
+     */
+    private void rotate() throws IOException {
+        if (System.currentTimeMillis() < rotateRetryAt) return;
+
+        flush();
+        channel.close();
+
+        IOException failure = null;
+        try {
+            if (keepFiles == 0) {
+                Files.deleteIfExists(path);
+            }
+            else {
+                Files.deleteIfExists(rotated(keepFiles));
+                for (int i = keepFiles - 1; i >= 1; i--) {
+                    if (Files.exists(rotated(i))) Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            failure = e;
+            rotateRetryAt = System.currentTimeMillis() + ROTATE_RETRY_MILLIS;
+        } finally {
+            open();
+        }
+
+        if (failure != null) {
+            format(System.currentTimeMillis(), Level.WARN, "Log", "Failed to rotate the log, appending to the current file",
+                    new Object[] { "error", failure.toString() });
+        }
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    /**
+     * Collects bytes until the end of a line, then logs the line
+     */
+    private class LineStream extends OutputStream {
+        private final String source;
+        private final Level level;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        LineStream(String source, Level level) {
+            this.source = source;
+            this.level = level;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                int length = pending.size();
+                byte[] bytes = pending.toByteArray();
+                if (length > 0 && bytes[length - 1] == '\r') length--;
+
+                log(level, source, new String(bytes, 0, length, StandardCharsets.UTF_8));
+                pending.reset();
+            }
+            else {
+                pending.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) write(b[i]);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.nathcat.peoplecat_server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs at most a fixed number of tasks at a time on an underlying executor, starting queued tasks in submission order
+ * as running ones finish. This allows the tagged requests of a single connection to be handled concurrently without
+ * letting one client occupy every thread of a shared executor.
+ * @see SerialExecutor
+ */
+public class BoundedExecutor implements Executor {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    private final int limit;
+    private int running = 0;
+
+    /**
+     * @param executor The executor to run tasks on
+     * @param limit The maximum number of tasks to run at once, must be at least 1
+     */
+    public BoundedExecutor(Executor executor, int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1");
+
+        this.executor = executor;
+        this.limit = limit;
+    }
+
+    @Override
+    public synchronized void execute(Runnable r) {
+        tasks.add(() -> {
+            try {
+                r.run();
+            } finally {
+                finished();
+            }
+        });
+
+        if (running < limit) {
+            running++;
+            executor.execute(tasks.poll());
+        }
+    }
+
+    private synchronized void finished() {
+        Runnable next = tasks.poll();
+        if (next != null) executor.execute(next);
+        else running--;
+    }
+
+    /**
+     * @return The number of tasks which are currently running
+     */
+    public synchronized int running() {
+        return running;
+    }
+
+    /**
+     * @return The number of tasks waiting for a running task to finish
+     */
+    public synchronized int waiting() {
+        return tasks.size();
+    }
+}
@@ -0,0 +1,83 @@
+package com.nathcat.peoplecat_server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A notification which is sent to many connections at once, such as a new message in a chat or a change in a
+ * user's presence.</p>
+ * <p>
+ *     The packet is encoded at most once for each codec, and framed at most once for websocket connections, however
+ *     many connections it is sent to. Every connection is given a read-only view of the same bytes, so the buffers
+ *     are never modified, and since they are heap buffers the <code>BufferPool</code> ignores them when the
+ *     transport releases them after writing.
+ * </p>
+ * <p>
+ *     Raw TCP connections, and websocket connections which have negotiated an extension which transforms frames,
+ *     such as permessage-deflate, are given the encoded packet. Other websocket connections are given a complete
+ *     binary frame holding the encoded packet, which is queued on the socket without being framed again. TLS
+ *     websockets encrypt the frame as it is written, so they can share it too.
+ * </p>
+ */
+public final class Broadcast {
+    public final Packet packet;
+    private final ConcurrentHashMap<PayloadCodec, ByteBuffer> encoded = new ConcurrentHashMap<>(4);
+    private final ConcurrentHashMap<PayloadCodec, ByteBuffer> frames = new ConcurrentHashMap<>(4);
+
+    public Broadcast(Packet packet) {
+        this.packet = packet;
+    }
+
+    /**
+     * Get the encoded packet
+     * @param codec The codec to encode the payload with
+     * @return A read-only view of the encoded packet, which belongs to the caller
+     */
+    public ByteBuffer bytes(PayloadCodec codec) {
+        return encoded.computeIfAbsent(codec, c -> ByteBuffer.wrap(packet.getBytes(c)).asReadOnlyBuffer()).duplicate();
+    }
+
+    /**
+     * Get an unmasked websocket binary frame holding the encoded packet, as a server sends it
+     * @param codec The codec to encode the payload with
+     * @return A read-only view of the frame, which belongs to the caller
+     */
+    public ByteBuffer webSocketFrame(PayloadCodec codec) {
+        return frames.computeIfAbsent(codec, c -> {
+            ByteBuffer payload = bytes(c);
+            int length = payload.remaining();
+
+            ByteBuffer frame = ByteBuffer.allocate((length < 126 ? 2 : length <= 0xFFFF ? 4 : 10) + length);
+            frame.put((byte) 0x82);  // FIN and the binary opcode
+
+            if (length < 126) {
+                frame.put((byte) length);
+            }
+            else if (length <= 0xFFFF) {
+                frame.put((byte) 126);
+                frame.putShort((short) length);
+            }
+            else {
+                frame.put((byte) 127);
+                frame.putLong(length);
+            }
+
+            frame.put(payload);
+            return frame.flip().asReadOnlyBuffer();
+        }).duplicate();
+    }
+
+    /**
+     * Send the broadcast as a notification to each of the given handlers
+     * @param handlers The handlers to send to
+     * @return The number of handlers the notification was queued for, those which were not are slow consumers
+     */
+    public int sendTo(ConnectionHandler[] handlers) {
+        int sent = 0;
+        for (ConnectionHandler h : handlers) {
+            if (h.sendNotification(this)) sent++;
+        }
+
+        return sent;
+    }
+}
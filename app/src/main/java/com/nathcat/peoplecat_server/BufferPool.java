@@ -0,0 +1,72 @@
+package com.nathcat.peoplecat_server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A pool of direct byte buffers used to encode outbound packets.</p>
+ * <p>
+ *     Buffers are grouped into power of two size classes, from 512 bytes up to 64 KiB, each holding a bounded number
+ *     of free buffers. Requests larger than the biggest class get a heap buffer which is never pooled, since large
+ *     packets are rare and pinning large direct buffers for them would waste memory.
+ * </p>
+ * <p>
+ *     A buffer must be released exactly once, by whoever owns it last, and must not be touched after it has been
+ *     released. Buffers which did not come from the pool are ignored by <code>release</code>.
+ * </p>
+ */
+public class BufferPool {
+    private final SizeClasses<ByteBuffer> classes;
+    /**
+     * Number of buffers handed out which were taken from the pool
+     */
+    public final AtomicLong reused = new AtomicLong();
+    /**
+     * Number of buffers handed out which had to be allocated
+     */
+    public final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Create a new pool
+     * @param buffersPerClass The maximum number of free buffers to keep in each size class
+     */
+    public BufferPool(int buffersPerClass) {
+        classes = new SizeClasses<>(9, 16, buffersPerClass);
+    }
+
+    /**
+     * Get a buffer which can hold at least the given number of bytes. The buffer's position is zero and its limit is
+     * set to the requested size.
+     * @param size The number of bytes required
+     * @return A cleared buffer
+     */
+    public ByteBuffer acquire(int size) {
+        int c = classes.classFor(size);
+        if (c == -1) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = classes.poll(c);
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(classes.sizeOf(c));
+        }
+        else {
+            reused.incrementAndGet();
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers which were not allocated by a pool are ignored.
+     * @param buffer The buffer to return
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+
+        classes.offer(buffer, buffer.capacity());
+    }
+}
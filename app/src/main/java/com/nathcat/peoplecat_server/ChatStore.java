@@ -0,0 +1,155 @@
+package com.nathcat.peoplecat_server;
+
+import com.nathcat.messagecat_database_entities.Message;
+import com.nathcat.peoplecat_database.MessageBox;
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * <p>Reads and writes the message boxes of chats on behalf of packet handlers.</p>
+ * <p>
+ *     Opening a message box rewrites it, and adding a message rewrites it again, so two writers working on the same
+ *     box at once can lose messages. Within a node, operations on the same chat are serialised by a striped lock. In a
+ *     cluster, every chat is owned by one node, chosen by the cluster's hash ring, and other nodes forward operations
+ *     on the chat to its owner rather than touching the box themselves, so each box is only ever written by one node
+ *     at a time.
+ * </p>
+ * <p>
+ *     The nodes of a cluster must keep their message boxes on storage they all share, such as a network file system.
+ *     When a node joins or leaves, the chats which change owner are not copied anywhere, their new owner simply
+ *     opens the same file. On disks which are not shared, the new owner would find no box and create an empty one,
+ *     losing the chat's messages.
+ * </p>
+ */
+public class ChatStore {
+    static final byte OP_READ = 1;
+    static final byte OP_APPEND = 2;
+
+    private static final int LOCK_STRIPES = 256;
+
+    private final Server server;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public ChatStore(Server server) {
+        this.server = server;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(int chatId) {
+        return locks[(chatId * 0x9E3779B9 >>> 24) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Get the messages in a chat's message box, creating the box if it does not exist yet
+     * @param chatId The ID of the chat
+     * @return The messages which have not expired
+     * @throws IOException Thrown if the box cannot be read, or its owner cannot be reached
+     */
+    public Message[] read(int chatId) throws IOException {
+        RequestTrace.chat(chatId);
+        String owner = server.cluster.awaitOwner(chatId);
+        if (owner == null) return readLocal(chatId);
+
+        JSONArray array = (JSONArray) parse(call(owner, OP_READ, chatId, ""));
+        Message[] messages = new Message[array.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = MessageBox.messageFromJSON((JSONObject) array.get(i));
+        }
+
+        return messages;
+    }
+
+    /**
+     * Add a message to a chat's message box
+     * @param chatId The ID of the chat
+     * @param message The message
+     * @throws IOException Thrown if the box does not exist or cannot be written, or its owner cannot be reached
+     */
+    public void append(int chatId, Message message) throws IOException {
+        RequestTrace.chat(chatId);
+        String owner = server.cluster.awaitOwner(chatId);
+        if (owner == null) appendLocal(chatId, message);
+        else call(owner, OP_APPEND, chatId, MessageBox.messageToJSON(message).toJSONString());
+    }
+
+    private String call(String owner, byte op, int chatId, String body) throws IOException {
+        RequestTrace.enter(RequestTrace.Stage.CLUSTER);
+        try {
+            return server.cluster.call(owner, op, chatId, body);
+        } finally {
+            RequestTrace.exit();
+        }
+    }
+
+    /**
+     * Perform an operation which another node has forwarded to this one
+     * @param op The operation
+     * @param chatId The ID of the chat
+     * @param body The operation's argument, as JSON
+     * @return The operation's result, as JSON
+     * @throws IOException Thrown if the operation fails
+     */
+    public String serve(byte op, int chatId, String body) throws IOException {
+        switch (op) {
+            case OP_READ -> {
+                JSONArray array = new JSONArray();
+                for (Message m : readLocal(chatId)) array.add(MessageBox.messageToJSON(m));
+                return array.toJSONString();
+            }
+
+            case OP_APPEND -> {
+                appendLocal(chatId, MessageBox.messageFromJSON((JSONObject) parse(body)));
+                return "";
+            }
+
+            default -> throw new IOException("Unknown chat store operation " + op);
+        }
+    }
+
+    private Message[] readLocal(int chatId) throws IOException {
+        RequestTrace.enter(RequestTrace.Stage.MESSAGEBOX);
+        try {
+            synchronized (lockFor(chatId)) {
+                try {
+                    return MessageBox.openMessageBox(chatId);
+                } catch (FileNotFoundException e) {
+                    MessageBox.updateMessageBox(chatId, new Message[0]);
+                    return MessageBox.openMessageBox(chatId);
+                }
+            }
+        } finally {
+            RequestTrace.exit();
+        }
+    }
+
+    private void appendLocal(int chatId, Message message) throws IOException {
+        RequestTrace.enter(RequestTrace.Stage.MESSAGEBOX);
+        try {
+            synchronized (lockFor(chatId)) {
+                Message[] messages = MessageBox.openMessageBox(chatId);
+                Message[] newMessages = new Message[messages.length + 1];
+                System.arraycopy(messages, 0, newMessages, 0, messages.length);
+                newMessages[messages.length] = message;
+                MessageBox.updateMessageBox(chatId, newMessages);
+            }
+        } finally {
+            RequestTrace.exit();
+        }
+    }
+
+    private static Object parse(String json) throws IOException {
+        try {
+            return new JSONParser().parse(json);
+        } catch (ParseException e) {
+            throw new IOException("Invalid chat store data: " + e.getMessage());
+        }
+    }
+}
@@ -6,9 +6,12 @@ import com.nathcat.messagecat_database_entities.Message;
 import com.nathcat.peoplecat_database.Database;
 import com.nathcat.peoplecat_database.KeyManager;
 import com.nathcat.peoplecat_database.MessageBox;
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import nl.martijndwars.webpush.Notification;
 import org.java_websocket.WebSocket;
 import org.jose4j.lang.JoseException;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
@@ -29,6 +32,16 @@ import java.util.*;
  */
 public class ClientHandler extends ConnectionHandler {
     private final Server server;
+    /**
+     * Guards the transitions into and out of the authenticated state, so that closing a connection from several
+     * threads only cleans up once, and a connection closed while it is authenticating is never left in the presence
+     * index.
+     */
+    private final Object authLock = new Object();
+    /**
+     * True once the connection has been closed, guarded by <code>authLock</code>
+     */
+    private boolean closed = false;
 
     public ClientHandler(Server server, Socket client) throws IOException {
         super(client, null);
@@ -36,8 +49,19 @@ public class ClientHandler extends ConnectionHandler {
         this.packetHandler = createPacketHandler();
 
         this.server = server;
+        bufferPool = server.bufferPool;
+        payloadPool = server.payloadPool;
+        outbound = new OutboundQueue(this, server.outboundConfig);
+        drain = server.drain;
+        tracer = server.tracer;
+        metrics = server.metrics;
+        slowRequestNanos = server.slowRequestMillis * 1_000_000;
+        if (server.maxInFlightRequests > 0 && server.handlerExecutor != null) {
+            pipelineExecutor = new BoundedExecutor(server.handlerExecutor, server.maxInFlightRequests);
+        }
+        maxQueuedSequences = server.maxQueuedRequests;
 
-        log("Got connection.");
+        log(AsyncLog.Level.DEBUG, "Got connection.");
     }
 
     public ClientHandler(Server server, WebSocket client, WebSocketOutputStream os, WebSocketInputStream is)
@@ -45,6 +69,38 @@ public class ClientHandler extends ConnectionHandler {
         super(client, os, is, null);
         this.server = server;
         packetHandler = createPacketHandler();
+        bufferPool = server.bufferPool;
+        payloadPool = server.payloadPool;
+        outbound = new OutboundQueue(this, server.outboundConfig);
+        drain = server.drain;
+        tracer = server.tracer;
+        metrics = server.metrics;
+        slowRequestNanos = server.slowRequestMillis * 1_000_000;
+        if (server.maxInFlightRequests > 0 && server.handlerExecutor != null) {
+            pipelineExecutor = new BoundedExecutor(server.handlerExecutor, server.maxInFlightRequests);
+        }
+        maxQueuedSequences = server.maxQueuedRequests;
+
+        if (server.handlerExecutor != null) sequenceExecutor = new SerialExecutor(server.handlerExecutor);
+    }
+
+    public ClientHandler(Server server, NioConnection client, NioOutputStream os) {
+        super(client, os, null);
+        this.server = server;
+        packetHandler = createPacketHandler();
+        bufferPool = server.bufferPool;
+        payloadPool = server.payloadPool;
+        outbound = new OutboundQueue(this, server.outboundConfig);
+        drain = server.drain;
+        tracer = server.tracer;
+        metrics = server.metrics;
+        slowRequestNanos = server.slowRequestMillis * 1_000_000;
+        if (server.maxInFlightRequests > 0 && server.handlerExecutor != null) {
+            pipelineExecutor = new BoundedExecutor(server.handlerExecutor, server.maxInFlightRequests);
+        }
+        maxQueuedSequences = server.maxQueuedRequests;
+
+        log(AsyncLog.Level.DEBUG, "Got connection.");
     }
 
     private IPacketHandler createPacketHandler() {
@@ -73,9 +129,33 @@ public class ClientHandler extends ConnectionHandler {
                 // Get the data from the single packet
                 JSONObject user = packets[0].getData();
 
+                // The codec field is meant for us rather than AuthCat, so take it out before sending the request on
+                Object codecName = user.remove("codec");
+                PayloadCodec requestedCodec = null;
+                if (codecName != null) {
+                    requestedCodec = PayloadCodec.forName(String.valueOf(codecName));
+                    if (requestedCodec == null) {
+                        return new Packet[] { Packet.createError("Unsupported codec",
+                                "The server does not support the codec " + codecName + ".") };
+                    }
+                }
+
                 // Send the request to AuthCat
-                AuthResult authCatResponse = AuthCat.tryAuthenticate(user);
-                handler.log("Got response from AuthCat: " + authCatResponse);
+                AuthResult authCatResponse = null;
+                ServerEvents.AuthCatRequest event = new ServerEvents.AuthCatRequest();
+                event.begin();
+                RequestTrace.enter(RequestTrace.Stage.AUTHCAT);
+                try {
+                    authCatResponse = AuthCat.tryAuthenticate(user);
+                } finally {
+                    RequestTrace.exit();
+                    if (event.shouldCommit()) {
+                        event.operation = "tryAuthenticate";
+                        event.success = authCatResponse != null && authCatResponse.result;
+                        event.finish();
+                    }
+                }
+                if (Server.isLoggable(AsyncLog.Level.DEBUG)) handler.log(AsyncLog.Level.DEBUG, "Got response from AuthCat: " + authCatResponse);
 
                 // If the response is a failed authentication, respond with an error packet
                 if (!authCatResponse.result) {
@@ -86,20 +166,11 @@ public class ClientHandler extends ConnectionHandler {
                 // Check if the handler was previously authenticated, if so clean up!
                 deAuthenticate();
 
-                // Set relevant handler fields
-                handler.authenticated = true;
-                handler.user = authCatResponse.user;
-                handler.user.put("id", Math.toIntExact((long) handler.user.get("id")));
-
-                // Add this user to the handler list
-                ClientHandler ch = (ClientHandler) handler;
-                List<ClientHandler> handlerList = ch.server.userToHandler.get((int) handler.user.get("id"));
-                if (handlerList != null)
-                    handlerList.add(ch);
-                else {
-                    handlerList = Collections.synchronizedList(new LinkedList<>());
-                    handlerList.add(ch);
-                    ch.server.userToHandler.put((int) handler.user.get("id"), handlerList);
+                // Set relevant handler fields and add this session to the presence index
+                JSONObject authenticatedUser = authCatResponse.user;
+                authenticatedUser.put("id", Math.toIntExact((long) authenticatedUser.get("id")));
+                if (!((ClientHandler) handler).markAuthenticated(authenticatedUser)) {
+                    return new Packet[] { Packet.createError("Connection closed", "The connection was closed while authenticating.") };
                 }
 
                 // Notify this user's online followers that they are online
@@ -107,7 +178,7 @@ public class ClientHandler extends ConnectionHandler {
                     PreparedStatement stmt = server.db
                             .getPreparedStatement("SELECT follower FROM Friends WHERE id = ?");
                     stmt.setInt(1, (int) handler.user.get("id"));
-                    stmt.execute();
+                    Database.execute(stmt);
                     JSONObject[] r = Database.extractResultSet(stmt.getResultSet());
                     JSONObject user_notif_data = new JSONObject();
                     user_notif_data.putAll(handler.user);
@@ -115,16 +186,17 @@ public class ClientHandler extends ConnectionHandler {
                     user_notif_data.remove("verified");
                     user_notif_data.remove("email");
 
+                    Broadcast online = new Broadcast(Packet.createPacket(
+                            Packet.TYPE_NOTIFICATION_USER_ONLINE,
+                            true,
+                            user_notif_data));
+
+                    Cluster.Fanout fanout = server.cluster.fanout(online);
                     for (JSONObject jsonObject : r) {
-                        List<ClientHandler> followerList = server.userToHandler.get((int) jsonObject.get("follower"));
-
-                        if (followerList != null)
-                            followerList.forEach((ClientHandler h) -> h.writePacket(
-                                    Packet.createPacket(
-                                            Packet.TYPE_NOTIFICATION_USER_ONLINE,
-                                            true,
-                                            user_notif_data)));
+                        fanout.add((int) jsonObject.get("follower"));
                     }
+
+                    fanout.finish();
                 } catch (SQLException e) {
                     handler.log("\033[91;3mSQL error! " + e.getMessage() + "\033[0m");
                 }
@@ -146,6 +218,11 @@ public class ClientHandler extends ConnectionHandler {
                 response.putAll(handler.user);
                 response.put("keyPair", keyPair);
 
+                if (requestedCodec != null) {
+                    packets[0].switchCodec = requestedCodec;
+                    response.put("codec", requestedCodec.name());
+                }
+
                 return new Packet[] { Packet.createPacket(
                         Packet.TYPE_AUTHENTICATE,
                         true,
@@ -177,11 +254,21 @@ public class ClientHandler extends ConnectionHandler {
                 JSONObject request = packets[0].getData();
                 JSONObject[] users;
 
-                JSONObject response;
+                JSONObject response = null;
+                ServerEvents.AuthCatRequest event = new ServerEvents.AuthCatRequest();
+                event.begin();
+                RequestTrace.enter(RequestTrace.Stage.AUTHCAT);
                 try {
                     response = AuthCat.userSearch(request);
                 } catch (InvalidResponse | IOException | InterruptedException e) {
                     throw new RuntimeException(e);
+                } finally {
+                    RequestTrace.exit();
+                    if (event.shouldCommit()) {
+                        event.operation = "userSearch";
+                        event.success = response != null && "success".equals(response.get("status"));
+                        event.finish();
+                    }
                 }
 
                 if (((String) response.get("status")).contentEquals("success")) {
@@ -240,14 +327,7 @@ public class ClientHandler extends ConnectionHandler {
                 int chatId = Math.toIntExact((long) request.get("chatId"));
                 Message[] messages;
                 try {
-                    messages = MessageBox.openMessageBox(chatId);
-                } catch (FileNotFoundException e) {
-                    try {
-                        MessageBox.updateMessageBox(chatId, new Message[0]);
-                        messages = MessageBox.openMessageBox(chatId);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
+                    messages = server.chats.read(chatId);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -291,11 +371,7 @@ public class ClientHandler extends ConnectionHandler {
                         (long) request.get("timeSent"), request.get("content"));
 
                 try {
-                    Message[] messages = MessageBox.openMessageBox(msg.ChatID);
-                    Message[] newMessages = new Message[messages.length + 1];
-                    System.arraycopy(messages, 0, newMessages, 0, messages.length);
-                    newMessages[messages.length] = msg;
-                    MessageBox.updateMessageBox(msg.ChatID, newMessages);
+                    server.chats.append(msg.ChatID, msg);
                 } catch (IOException e) {
                     return new Packet[] { Packet.createError("Server error",
                             "An error occurred when writing the message store to the disk.") };
@@ -308,7 +384,7 @@ public class ClientHandler extends ConnectionHandler {
                     PreparedStatement stmt = server.db.getPreparedStatement(
                             "SELECT ChatID AS `chatId`, Name AS `name`, Icon AS `icon`, isPrivate FROM Chats WHERE ChatID = ?");
                     stmt.setInt(1, chatID);
-                    stmt.execute();
+                    Database.execute(stmt);
 
                     JSONObject[] results = Database.extractResultSet(stmt.getResultSet());
                     try {
@@ -330,7 +406,7 @@ public class ClientHandler extends ConnectionHandler {
                 notification.put("chat", chat);
                 JSONObject msgJSON = MessageBox.messageToJSON(msg);
                 notification.put("message", msgJSON);
-                Packet notifyPacket = Packet.createPacket(Packet.TYPE_NOTIFICATION_MESSAGE, true, notification);
+                Broadcast notifyPacket = new Broadcast(Packet.createPacket(Packet.TYPE_NOTIFICATION_MESSAGE, true, notification));
                 ClientHandler ch = (ClientHandler) handler;
 
                 JSONObject[] members;
@@ -338,7 +414,7 @@ public class ClientHandler extends ConnectionHandler {
                     PreparedStatement stmt = server.db.getPreparedStatement(
                             "SELECT `user`, pfpPath, fullName, Chats.Name AS 'chatName' FROM ChatMemberships JOIN SSO.Users ON `user` = SSO.Users.id JOIN Chats ON ChatMemberships.`chatid` = Chats.ChatID WHERE ChatMemberships.`chatid` = ?");
                     stmt.setInt(1, chatID);
-                    stmt.execute();
+                    Database.execute(stmt);
 
                     members = Database.extractResultSet(stmt.getResultSet());
                 } catch (SQLException e) {
@@ -347,6 +423,7 @@ public class ClientHandler extends ConnectionHandler {
                     return new Packet[] { Packet.createError("Database Error", e.getMessage()) };
                 }
 
+                Cluster.Fanout fanout = ch.server.cluster.fanout(notifyPacket);
                 for (JSONObject member : members) {
                     int userID = (int) member.get("user");
 
@@ -358,9 +435,7 @@ public class ClientHandler extends ConnectionHandler {
                     // continue;
                     // }
 
-                    List<ClientHandler> handlerList = ch.server.userToHandler.get(userID);
-                    if (handlerList != null)
-                        handlerList.forEach((ClientHandler h) -> h.writePacket(notifyPacket));
+                    fanout.add(userID);
 
                     JSONObject content = new JSONObject();
                     content.put("content", msgJSON.get("content"));
@@ -370,6 +445,8 @@ public class ClientHandler extends ConnectionHandler {
                     server.sendPushNotification(userID, content);
                 }
 
+                fanout.finish();
+
                 return new Packet[] { Packet.createPing() };
             }
 
@@ -394,7 +471,7 @@ public class ClientHandler extends ConnectionHandler {
                     JSONObject[] results;
                     PreparedStatement stmt = server.db.getPreparedStatement("SELECT * FROM Chats WHERE ChatID = ?");
                     stmt.setInt(1, (int) ((long) request.get("chatId")));
-                    stmt.execute();
+                    Database.execute(stmt);
                     results = Database.extractResultSet(stmt.getResultSet());
 
                     if (results.length != 1) {
@@ -418,7 +495,7 @@ public class ClientHandler extends ConnectionHandler {
                             .getPreparedStatement("INSERT INTO ChatMemberships (`user`, `chatid`) VALUES (?, ?)");
                     stmt.setInt(1, (int) handler.user.get("id"));
                     stmt.setInt(2, chatID);
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
                 } catch (SQLException e) {
                     if (e.getClass().getName()
                             .contentEquals(SQLIntegrityConstraintViolationException.class.getName())) {
@@ -453,7 +530,7 @@ public class ClientHandler extends ConnectionHandler {
                             "Get message queue request does not accept multi-packet arrays.") };
 
                 JSONObject d = new JSONObject();
-                d.put("usersOnline", server.handlers.size());
+                d.put("usersOnline", server.connections.count());
 
                 return new Packet[] { Packet.createPacket(
                         Packet.TYPE_GET_ACTIVE_USER_COUNT,
@@ -485,7 +562,7 @@ public class ClientHandler extends ConnectionHandler {
                     PreparedStatement stmt = server.db.getPreparedStatement(
                             "SELECT u.username, u.fullName, u.pfpPath FROM Friends LEFT JOIN SSO.Users as u ON Friends.id = u.id WHERE Friends.id = ?");
                     stmt.setInt(1, (int) handler.user.get("id"));
-                    stmt.execute();
+                    Database.execute(stmt);
 
                     results = Database.extractResultSet(stmt.getResultSet());
                     stmt.close();
@@ -531,14 +608,14 @@ public class ClientHandler extends ConnectionHandler {
                                 .getPreparedStatement("INSERT INTO FriendRequests (sender, recipient) values (?, ?)");
                         stmt.setInt(1, (int) handler.user.get("id"));
                         stmt.setInt(2, (int) data.get("recipient"));
-                        stmt.executeUpdate();
+                        Database.executeUpdate(stmt);
                         stmt.close();
 
                         stmt = server.db.getPreparedStatement(
                                 "SELECT id FROM FriendRequests WHERE sender = ? AND recipient = ?");
                         stmt.setInt(1, (int) handler.user.get("id"));
                         stmt.setInt(2, (int) data.get("recipient"));
-                        stmt.execute();
+                        Database.execute(stmt);
 
                         JSONObject[] r = Database.extractResultSet(stmt.getResultSet());
                         stmt.close();
@@ -558,7 +635,7 @@ public class ClientHandler extends ConnectionHandler {
                         PreparedStatement stmt = server.db
                                 .getPreparedStatement("SELECT sender FROM FriendRequests WHERE id = ?");
                         stmt.setInt(1, (int) data.get("id"));
-                        stmt.execute();
+                        Database.execute(stmt);
                         int sender;
                         try {
                             sender = (int) Database.extractResultSet(stmt.getResultSet())[0].get("sender");
@@ -576,12 +653,12 @@ public class ClientHandler extends ConnectionHandler {
                         stmt.setInt(2, sender);
                         stmt.setInt(3, sender);
                         stmt.setInt(4, (int) handler.user.get("id"));
-                        stmt.executeUpdate();
+                        Database.executeUpdate(stmt);
                         stmt.close();
 
                         stmt = server.db.getPreparedStatement("DELETE FROM FriendRequests WHERE id = ?");
                         stmt.setInt(1, (int) data.get("id"));
-                        stmt.executeUpdate();
+                        Database.executeUpdate(stmt);
                         stmt.close();
                     } catch (SQLException e) {
                         handler.log("\033[91;3mSQL error! " + e.getMessage() + "\033[0m");
@@ -599,7 +676,7 @@ public class ClientHandler extends ConnectionHandler {
                         PreparedStatement stmt = server.db
                                 .getPreparedStatement("DELETE FROM FriendRequests WHERE id = ?");
                         stmt.setInt(1, (int) data.get("id"));
-                        stmt.executeUpdate();
+                        Database.executeUpdate(stmt);
                         stmt.close();
                     } catch (SQLException e) {
                         handler.log("\033[91;3mSQL error! " + e.getMessage());
@@ -612,7 +689,7 @@ public class ClientHandler extends ConnectionHandler {
                         PreparedStatement stmt = server.db
                                 .getPreparedStatement("SELECT id, sender FROM FriendRequests WHERE recipient = ?");
                         stmt.setInt(1, (int) handler.user.get("id"));
-                        stmt.execute();
+                        Database.execute(stmt);
                         JSONObject[] r = Database.extractResultSet(stmt.getResultSet());
 
                         response = new Packet[r.length];
@@ -638,6 +715,19 @@ public class ClientHandler extends ConnectionHandler {
 
             @Override
             public Packet[] getServerInfo(ConnectionHandler handler, Packet[] packets) {
+                // The payload is optional, and is only used to request a codec switch
+                JSONObject request = packets[0].length == 0 ? null : packets[0].getData();
+                PayloadCodec requestedCodec = null;
+                if (request != null && request.get("codec") != null) {
+                    requestedCodec = PayloadCodec.forName(String.valueOf(request.get("codec")));
+                    if (requestedCodec == null) {
+                        return new Packet[] { Packet.createError("Unsupported codec",
+                                "The server does not support the codec " + request.get("codec") + ".") };
+                    }
+
+                    packets[0].switchCodec = requestedCodec;
+                }
+
                 JSONObject d = new JSONObject();
                 d.put("version", Server.version);
                 d.put("serverTime", new Date().toString());
@@ -647,6 +737,12 @@ public class ClientHandler extends ConnectionHandler {
                     d.put("pushServicePublicKey", null);
                 }
 
+                JSONArray codecs = new JSONArray();
+                codecs.add(PayloadCodec.JSON.name());
+                codecs.add(PayloadCodec.MESSAGE_PACK.name());
+                d.put("codecs", codecs);
+                d.put("codec", (requestedCodec != null ? requestedCodec : handler.codec).name());
+
                 return new Packet[] { Packet.createPacket(
                         Packet.TYPE_GET_SERVER_INFO,
                         true,
@@ -667,7 +763,7 @@ public class ClientHandler extends ConnectionHandler {
                     PreparedStatement stmt = server.db.getPreparedStatement(
                             "SELECT Chats.ChatID AS `chatId`, Name AS `name`, Icon AS `icon`, isPrivate FROM ChatMemberships INNER JOIN Chats ON ChatMemberships.`chatid` = Chats.ChatID WHERE `user` = ?");
                     stmt.setInt(1, (int) handler.user.get("id"));
-                    stmt.execute();
+                    Database.execute(stmt);
                     JSONObject[] results = Database.extractResultSet(stmt.getResultSet());
 
                     if (results.length == 0) {
@@ -731,18 +827,18 @@ public class ClientHandler extends ConnectionHandler {
                     stmt.setString(1, name);
                     if (icon != null)
                         stmt.setString(2, icon);
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
 
                     stmt = server.db.getPreparedStatement(
                             "SELECT ChatID AS `chatId`, Name AS `name`, Icon AS `icon`, isPrivate FROM Chats WHERE ChatID = LAST_INSERT_ID()");
-                    stmt.execute();
+                    Database.execute(stmt);
                     chat = Database.extractResultSet(stmt.getResultSet())[0];
 
                     stmt = server.db
                             .getPreparedStatement("INSERT INTO ChatMemberships (`user`, `chatid`) VALUES (?, ?)");
                     stmt.setInt(1, (int) handler.user.get("id"));
                     stmt.setInt(2, (int) chat.get("chatId"));
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
 
                     if (key != null)
                         KeyManager.addChatKey((int) handler.user.get("id"), (int) chat.get("chatId"), key);
@@ -803,7 +899,7 @@ public class ClientHandler extends ConnectionHandler {
                     PreparedStatement stmt = server.db
                             .getPreparedStatement("DELETE FROM ChatMemberships WHERE user = ?");
                     stmt.setInt(1, (int) handler.user.get("id"));
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
                     stmt.close();
 
                 } catch (SQLException e) {
@@ -886,7 +982,7 @@ public class ClientHandler extends ConnectionHandler {
                             .getPreparedStatement("SELECT * FROM Friends WHERE id = ? AND follower = ?");
                     stmt.setInt(1, (int) handler.user.get("id"));
                     stmt.setInt(2, (int) request.get("id"));
-                    stmt.execute();
+                    Database.execute(stmt);
 
                     JSONObject[] results = Database.extractResultSet(stmt.getResultSet());
                     if (results.length == 0) {
@@ -916,7 +1012,7 @@ public class ClientHandler extends ConnectionHandler {
                             .getPreparedStatement("INSERT INTO ChatMemberships (`user`, `chatId`) VALUES (?, ?)");
                     stmt.setInt(1, (int) request.get("id"));
                     stmt.setInt(2, (int) request.get("chatId"));
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
 
                 } catch (SQLException e) {
                     return new Packet[] { Packet.createError("DB Error",
@@ -956,7 +1052,7 @@ public class ClientHandler extends ConnectionHandler {
                     stmt.setString(2, (String) request.get("endpoint"));
                     stmt.setString(3, (String) request.get("key"));
                     stmt.setString(4, (String) request.get("auth"));
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
                     ResultSet rs = stmt.getGeneratedKeys();
                     rs.next();
                     id = rs.getInt(1);
@@ -996,7 +1092,7 @@ public class ClientHandler extends ConnectionHandler {
                             .getPreparedStatement("DELETE FROM PushSubscriptions WHERE id = ? AND `user` = ?");
                     stmt.setInt(1, Math.toIntExact((long) request.get("id")));
                     stmt.setInt(2, (int) handler.user.get("id"));
-                    stmt.executeUpdate();
+                    Database.executeUpdate(stmt);
                 } catch (SQLException e) {
                     return new Packet[] { Packet.createError("DB Error",
                             "Failed to remove the subscription record to the database: " + e.getMessage()) };
@@ -1004,12 +1100,32 @@ public class ClientHandler extends ConnectionHandler {
 
                 return new Packet[] { Packet.createPacket(Packet.TYPE_PUSH_UNSUBSCRIBE, true, null) };
             }
+
+            @Override
+            public Packet[] reconnectLater(ConnectionHandler handler, Packet[] packets) {
+                return new Packet[] { Packet.createError("Invalid packet type",
+                        "The server is not able to receive reconnect later packets.") };
+            }
+
+            @Override
+            public Packet[] getMetrics(ConnectionHandler handler, Packet[] packets) {
+                if (!handler.authenticated)
+                    return new Packet[] { Packet.createError("Not authenticated",
+                            "This request requires you to have an authenticated connection.") };
+
+                ClientHandler ch = (ClientHandler) handler;
+                if (!ch.server.adminUsers.contains((int) handler.user.get("id")))
+                    return new Packet[] { Packet.createError("Not an administrator",
+                            "Only administrators may read the server's metrics.") };
+
+                return new Packet[] { Packet.createPacket(Packet.TYPE_GET_METRICS, true, ch.server.metrics.toJSON()) };
+            }
         };
     }
 
     @Override
     public void run() {
-        log("Thread started.");
+        log(AsyncLog.Level.DEBUG, "Thread started.");
         this.active = true;
 
         // No longer required with the new websocket library
@@ -1019,92 +1135,94 @@ public class ClientHandler extends ConnectionHandler {
             while (true) {
                 // Get the packet sequence from the input stream
                 ArrayList<Packet> packets = new ArrayList<>();
+                long sequenceBytes = 0;
                 Packet p;
                 while (!(p = getPacket()).isFinal) {
-                    log("Got packet:\n" + p);
-
                     if (p.type == Packet.TYPE_CLOSE) {
                         break;
                     }
 
                     packets.add(p);
+                    sequenceBytes += Packet.HEADER_SIZE + p.length;
+                    payloadPool.checkSequenceSize(sequenceBytes);
                 }
 
-                log("Got packet:\n" + p);
-
                 if (p.type == Packet.TYPE_CLOSE) {
                     break;
                 }
 
                 packets.add(p);
 
-                Packet[] packetSequence = packets.toArray(new Packet[0]);
-
-                // Use a response handler to determine the response from the packet sequence
-                Packet[] responseSequence = packetHandler.handle(this, packetSequence);
-                if (responseSequence == null)
-                    continue;
-
-                // Send the response sequence to the client through the output stream
-                for (Packet packet : responseSequence) {
-                    if (packet.type != Packet.TYPE_PING)
-                        log("Writing packet: \n" + packet + " -> " + packet.getData().toJSONString());
-                    else
-                        log("Pinging client.");
-                    writePacket(packet);
-                }
+                // Sequences without a request ID are handled on this thread, before the next one is read
+                dispatch(packets.toArray(new Packet[0]));
             }
         } catch (Exception e) {
             log("\033[91;3m" + e.getMessage() + "\n" + Server.stringifyStackTrace(e.getStackTrace()) + "\033[0m");
         }
 
-        log("Closing thread.");
+        log(AsyncLog.Level.DEBUG, "Closing thread.");
         close();
         active = false;
         interrupt();
     }
 
+    /**
+     * Enter the authenticated state as a user and add this session to the presence index, unless the connection has
+     * already been closed. The user is set before the state is published, so any thread which sees the connection
+     * as authenticated also sees its user.
+     * @param user The user's record from AuthCat, with an integer ID
+     * @return False if the connection has been closed, in which case nothing is changed
+     */
+    private boolean markAuthenticated(JSONObject user) {
+        int id = (int) user.get("id");
+        synchronized (authLock) {
+            if (closed) return false;
+
+            this.user = user;
+            authenticated = true;
+            server.connections.onAuthenticated();
+            if (server.presence.add(id, this)) server.cluster.presenceChanged(id);
+        }
+
+        return true;
+    }
+
     public void deAuthenticate() {
-        if (authenticated) {
-            List<ClientHandler> handlerList = server.userToHandler.get((int) user.get("id"));
-
-            for (int i = 0; i < handlerList.size(); i++) {
-                // Presumably this comparison should determine if the handlers in question are
-                // the same handlers.
-                // I'm not sure why simply comparing the references doesn't work, but I will
-                // give this a go and
-                // see if it works.
-                // Apparantly it does indeed work now !
-                if (handlerList.get(i).threadId() == this.threadId()) {
-                    handlerList.remove(i);
-                    break;
-                }
-            }
+        synchronized (authLock) {
+            if (!authenticated) return;
+            authenticated = false;
+        }
 
-            try {
-                PreparedStatement stmt = server.db.getPreparedStatement("SELECT follower FROM Friends WHERE id = ?");
-                stmt.setInt(1, (int) user.get("id"));
-                stmt.execute();
-                JSONObject[] r = Database.extractResultSet(stmt.getResultSet());
-                JSONObject user_notif_data = new JSONObject();
-                user_notif_data.putAll(user);
-                user_notif_data.remove("password");
-                user_notif_data.remove("verified");
-                user_notif_data.remove("email");
-
-                for (JSONObject jsonObject : r) {
-                    List<ClientHandler> followerList = server.userToHandler.get((int) jsonObject.get("follower"));
-
-                    if (followerList != null)
-                        followerList.forEach((ClientHandler h) -> h.writePacket(
-                                Packet.createPacket(
-                                        Packet.TYPE_NOTIFICATION_USER_OFFLINE,
-                                        true,
-                                        user_notif_data)));
-                }
-            } catch (SQLException e) {
-                log("\033[91;3mSQL error! " + e.getMessage());
+        server.connections.onDeAuthenticated();
+
+        if (server.presence.remove((int) user.get("id"), this)) {
+            server.cluster.presenceChanged((int) user.get("id"));
+        }
+
+        try {
+            PreparedStatement stmt = server.db.getPreparedStatement("SELECT follower FROM Friends WHERE id = ?");
+            stmt.setInt(1, (int) user.get("id"));
+            Database.execute(stmt);
+            JSONObject[] r = Database.extractResultSet(stmt.getResultSet());
+            JSONObject user_notif_data = new JSONObject();
+            user_notif_data.putAll(user);
+            user_notif_data.remove("password");
+            user_notif_data.remove("verified");
+            user_notif_data.remove("email");
+
+            Broadcast offline = new Broadcast(Packet.createPacket(
+                    Packet.TYPE_NOTIFICATION_USER_OFFLINE,
+                    true,
+                    user_notif_data));
+
+            Cluster.Fanout fanout = server.cluster.fanout(offline);
+            for (JSONObject jsonObject : r) {
+                fanout.add((int) jsonObject.get("follower"));
             }
+
+            fanout.finish();
+        } catch (SQLException e) {
+            log("\033[91;3mSQL error! " + e.getMessage());
         }
     }
 
@@ -1112,6 +1230,11 @@ public class ClientHandler extends ConnectionHandler {
     public void close() {
         super.close();
 
+        synchronized (authLock) {
+            closed = true;
+        }
+
         deAuthenticate();
+        server.connections.deregister(this);
     }
 }
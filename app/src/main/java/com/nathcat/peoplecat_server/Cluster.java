@@ -0,0 +1,544 @@
+package com.nathcat.peoplecat_server;
+
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Lets several PeopleCat servers share their users, so that a notification reaches a user whichever node their
+ * sessions are connected to.</p>
+ * <p>
+ *     Each node tells every other node when one of its users comes online or goes offline, and sends a full list of
+ *     its online users whenever a peer connects, so every node knows which of its peers each online user is connected
+ *     to. Notifications are sent through a <code>Fanout</code>, which delivers to local sessions straight away and
+ *     collects the remote recipients by node, so each node is sent the notification once along with the list of its
+ *     users who should receive it.
+ * </p>
+ * <p>
+ *     Without a bus the server runs on its own, and fan-outs only deliver to local sessions.
+ * </p>
+ * <h3>Messages</h3>
+ * <p>Each message starts with a single byte giving its kind, followed by big endian integers.</p>
+ * <table>
+ *     <tr><th>Kind</th><th>Contents</th></tr>
+ *     <tr><td>1, presence</td><td>User ID, then 1 if the user is online on the sending node or 0 if not</td></tr>
+ *     <tr><td>2, snapshot</td><td>Number of users, then the ID of every user online on the sending node</td></tr>
+ *     <tr><td>3, deliver</td><td>Number of users, then their IDs, then the packet to deliver to them, encoded as JSON</td></tr>
+ *     <tr><td>4, request</td><td>Call ID as a long, operation as a byte, key, the sender's ring fingerprint as a long, then the argument as UTF-8 JSON</td></tr>
+ *     <tr><td>5, reply</td><td>Call ID as a long, 1 if the call succeeded or 0 if not, then the result or error message as UTF-8</td></tr>
+ *     <tr><td>6, ring</td><td>The fingerprint of the sending node's hash ring, as a long</td></tr>
+ * </table>
+ * <h3>Ownership</h3>
+ * <p>
+ *     Every node which is connected to this one is a member of the node's hash ring, which decides which node owns
+ *     each chat. Operations on a chat's stored messages are sent to its owner as a request, and the calling thread
+ *     waits for the reply.
+ * </p>
+ * <p>
+ *     Nodes disagree about the membership for a moment whenever a node joins or leaves, and while they do, two of
+ *     them could each believe they own the same chat. To stop both writing its message box, every node tells its
+ *     peers the fingerprint of its ring whenever the ring changes, and a node only touches a message box, for itself
+ *     or for another node, once every member of its ring has reported the same fingerprint as its own. Until then
+ *     operations wait, for up to the call timeout. A request also carries the fingerprint of the ring its sender
+ *     chose the owner with, and is refused if the owner's ring is different. This cannot protect nodes which have
+ *     been split into groups that cannot reach each other at all, since each group then agrees among itself.
+ * </p>
+ */
+public class Cluster implements ClusterBus.Listener {
+    private static final byte KIND_PRESENCE = 1;
+    private static final byte KIND_SNAPSHOT = 2;
+    private static final byte KIND_DELIVER = 3;
+    private static final byte KIND_REQUEST = 4;
+    private static final byte KIND_REPLY = 5;
+    private static final byte KIND_RING = 6;
+    private static final String[] NO_NODES = new String[0];
+
+    /**
+     * Sends one notification to many users, wherever in the cluster they are connected
+     */
+    public final class Fanout {
+        private final Broadcast broadcast;
+        private HashMap<String, ArrayList<Integer>> remote;
+
+        private Fanout(Broadcast broadcast) {
+            this.broadcast = broadcast;
+        }
+
+        /**
+         * Deliver the notification to a user's local sessions, and remember which other nodes should deliver it to
+         * them
+         * @param userId The ID of the user
+         */
+        public void add(int userId) {
+            RequestTrace.enter(RequestTrace.Stage.FANOUT);
+            try {
+                broadcast.sendTo(server.presence.sessions(userId));
+                if (bus == null) return;
+
+                String[] nodes = userNodes.getOrDefault(userId, NO_NODES);
+                if (nodes.length == 0) return;
+
+                if (remote == null) remote = new HashMap<>();
+                for (String node : nodes) {
+                    remote.computeIfAbsent(node, k -> new ArrayList<>()).add(userId);
+                }
+            } finally {
+                RequestTrace.exit();
+            }
+        }
+
+        /**
+         * Send the notification to every node with a recipient
+         */
+        public void finish() {
+            if (remote == null) return;
+
+            RequestTrace.enter(RequestTrace.Stage.FANOUT);
+            try {
+                send();
+            } finally {
+                RequestTrace.exit();
+            }
+        }
+
+        private void send() {
+            ByteBuffer packet = broadcast.bytes(PayloadCodec.JSON);
+            for (Map.Entry<String, ArrayList<Integer>> entry : remote.entrySet()) {
+                List<Integer> users = entry.getValue();
+                ByteBuffer message = ByteBuffer.allocate(5 + 4 * users.size() + packet.remaining());
+                message.put(KIND_DELIVER).putInt(users.size());
+                for (int user : users) message.putInt(user);
+                message.put(packet.duplicate()).flip();
+
+                if (bus.send(entry.getKey(), message)) deliveriesSent.incrementAndGet();
+                else deliveriesDropped.incrementAndGet();
+            }
+
+            remote = null;
+        }
+    }
+
+    private final Server server;
+    private final ClusterBus bus;
+    /**
+     * Serves operations forwarded by other nodes. These are kept off the handler threads, which may themselves be
+     * waiting on calls to other nodes, so that two nodes calling each other cannot each fill the other's handlers.
+     */
+    private final ExecutorService serveExecutor;
+    /**
+     * The peers each remote user is online on, as immutable arrays
+     */
+    private final ConcurrentHashMap<Integer, String[]> userNodes = new ConcurrentHashMap<>();
+    /**
+     * The users online on each peer
+     */
+    private final ConcurrentHashMap<String, Set<Integer>> nodeUsers = new ConcurrentHashMap<>();
+    /**
+     * Decides which node owns each chat
+     */
+    public final HashRing ring;
+    private final AtomicLong nextCallId = new AtomicLong();
+    private final ConcurrentHashMap<Long, PendingCall> calls = new ConcurrentHashMap<>();
+    /**
+     * The ring fingerprint each peer last reported
+     */
+    private final ConcurrentHashMap<String, Long> peerRings = new ConcurrentHashMap<>();
+    /**
+     * Notified whenever this node's ring or a peer's reported ring changes
+     */
+    private final Object settleLock = new Object();
+
+    /**
+     * A request sent to another node which has not been answered yet
+     */
+    private static final class PendingCall {
+        final String node;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        PendingCall(String node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Number of deliver messages queued for other nodes
+     */
+    public final AtomicLong deliveriesSent = new AtomicLong();
+    /**
+     * Number of deliver messages the bus refused because their node was disconnected or falling behind. Unlike
+     * presence these are never sent again, so each is a notification its recipients did not receive. Deliveries
+     * which were queued but lost when their node disconnected are only counted in <code>PeerQueue.dropped()</code>.
+     */
+    public final AtomicLong deliveriesDropped = new AtomicLong();
+    /**
+     * Number of deliver messages received from other nodes
+     */
+    public final AtomicLong deliveriesReceived = new AtomicLong();
+
+    /**
+     * @param server The server this node belongs to
+     * @param bus The bus connecting this node to its peers, or null if the server runs on its own
+     */
+    public Cluster(Server server, ClusterBus bus) {
+        this.server = server;
+        this.bus = bus;
+        ring = new HashRing(server.clusterVirtualNodes);
+        if (bus != null) ring.add(bus.nodeId());
+
+        serveExecutor = bus == null ? null : server.useVirtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "ClusterServer");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Start connecting to the other nodes
+     * @throws IOException Thrown if the bus cannot start
+     */
+    public void start() throws IOException {
+        if (bus != null) bus.start(this);
+    }
+
+    /**
+     * Disconnect from the other nodes
+     */
+    public void close() {
+        if (bus != null) bus.close();
+        if (serveExecutor != null) serveExecutor.shutdown();
+    }
+
+    /**
+     * @return True if this server is part of a cluster
+     */
+    public boolean isClustered() {
+        return bus != null;
+    }
+
+    /**
+     * @return The outbound queue of every peer, with its metrics
+     */
+    public Collection<PeerQueue> peers() {
+        return bus == null ? List.of() : bus.peers();
+    }
+
+    /**
+     * @return The number of users known to be online on other nodes
+     */
+    public int remoteUserCount() {
+        return userNodes.size();
+    }
+
+    /**
+     * Find the node which owns a key, such as a chat ID
+     * @param key The key
+     * @return The ID of the owning node, or null if this node owns it
+     */
+    public String ownerOf(long key) {
+        if (bus == null) return null;
+
+        String owner = ring.owner(key);
+        return owner.equals(bus.nodeId()) ? null : owner;
+    }
+
+    /**
+     * Find the node which owns a key, once every node in this node's ring agrees on the membership
+     * @param key The key
+     * @return The ID of the owning node, or null if this node owns it
+     * @throws IOException Thrown if the nodes do not agree within the call timeout
+     */
+    public String awaitOwner(long key) throws IOException {
+        if (bus == null) return null;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(server.clusterCallTimeoutMillis);
+        synchronized (settleLock) {
+            while (!isSettled()) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) throw new IOException("Cluster membership is changing, try again");
+
+                try {
+                    settleLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the cluster membership to settle");
+                }
+            }
+        }
+
+        return ownerOf(key);
+    }
+
+    /**
+     * @return True if every member of this node's ring has reported the same ring as this node's
+     */
+    private boolean isSettled() {
+        long fingerprint = ring.fingerprint();
+        for (String member : ring.members()) {
+            if (member.equals(bus.nodeId())) continue;
+
+            Long theirs = peerRings.get(member);
+            if (theirs == null || theirs != fingerprint) return false;
+        }
+
+        return true;
+    }
+
+    private void settleChanged() {
+        synchronized (settleLock) {
+            settleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Ask another node to perform an operation, and wait for its result
+     * @param node The ID of the node
+     * @param op The operation
+     * @param key The key the operation applies to
+     * @param body The operation's argument
+     * @return The operation's result
+     * @throws IOException Thrown if the node cannot be reached, does not answer in time, or the operation fails
+     */
+    public String call(String node, byte op, int key, String body) throws IOException {
+        long id = nextCallId.incrementAndGet();
+        PendingCall call = new PendingCall(node);
+        calls.put(id, call);
+
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer message = ByteBuffer.allocate(22 + bytes.length);
+            message.put(KIND_REQUEST).putLong(id).put(op).putInt(key).putLong(ring.fingerprint()).put(bytes).flip();
+            if (!bus.send(node, message)) throw new IOException("Cluster node " + node + " is not reachable");
+
+            return call.result.get(server.clusterCallTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException e) {
+            throw new IOException("Cluster node " + node + " did not answer in time");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for cluster node " + node);
+        } finally {
+            calls.remove(id);
+        }
+    }
+
+    /**
+     * Perform an operation requested by another node, and send back the result
+     */
+    private void serve(String peer, long id, byte op, int key, long fingerprint, String body) {
+        String result;
+        boolean ok;
+        try {
+            // The sender chose this node with its own ring, which must be the one this node is acting on
+            if (fingerprint != ring.fingerprint() || awaitOwner(key) != null) {
+                throw new IOException("Cluster node " + bus.nodeId() + " does not own chat " + key + " under the current membership, try again");
+            }
+
+            result = server.chats.serve(op, key, body);
+            ok = true;
+        } catch (IOException | RuntimeException e) {
+            result = e.getClass().getSimpleName() + ": " + e.getMessage();
+            ok = false;
+        }
+
+        byte[] bytes = result.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer reply = ByteBuffer.allocate(10 + bytes.length);
+        reply.put(KIND_REPLY).putLong(id).put((byte) (ok ? 1 : 0)).put(bytes).flip();
+        bus.send(peer, reply);
+    }
+
+    private void membershipChanged() {
+        Server.log("Cluster ring now has " + ring.members().size() + " nodes, this node owns "
+                + String.format("%.1f", ring.share(bus.nodeId()) * 100) + "% of chats");
+
+        bus.sendAll(ringMessage());
+        settleChanged();
+    }
+
+    private ByteBuffer ringMessage() {
+        return ByteBuffer.allocate(9).put(KIND_RING).putLong(ring.fingerprint()).flip();
+    }
+
+    /**
+     * Start sending a notification to many users
+     * @param broadcast The notification
+     * @return A fanout, which must be finished once every recipient has been added
+     */
+    public Fanout fanout(Broadcast broadcast) {
+        return new Fanout(broadcast);
+    }
+
+    /**
+     * Tell the other nodes that a user has come online or gone offline on this node. The user's current state is
+     * read while holding the lock on this node, so even if two of their sessions change at once, the last message
+     * every peer receives is correct.
+     * @param userId The ID of the user
+     */
+    public void presenceChanged(int userId) {
+        if (bus == null) return;
+
+        synchronized (this) {
+            ByteBuffer message = ByteBuffer.allocate(6);
+            message.put(KIND_PRESENCE).putInt(userId).put((byte) (server.presence.isOnline(userId) ? 1 : 0)).flip();
+            bus.sendAll(message);
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String peer) {
+        if (ring.add(peer)) membershipChanged();
+
+        // Under the same lock as presence changes, so that no change is queued ahead of an older snapshot
+        synchronized (this) {
+            int[] users = server.presence.users();
+            ByteBuffer message = ByteBuffer.allocate(5 + 4 * users.length);
+            message.put(KIND_SNAPSHOT).putInt(users.length);
+            for (int user : users) message.putInt(user);
+            bus.send(peer, message.flip());
+        }
+
+        bus.send(peer, ringMessage());
+    }
+
+    @Override
+    public void onPeerDisconnected(String peer) {
+        peerRings.remove(peer);
+        if (ring.remove(peer)) membershipChanged();
+
+        // Nothing more will arrive from the peer, so its answers are not coming
+        for (PendingCall call : calls.values()) {
+            if (call.node.equals(peer)) call.result.completeExceptionally(new IOException("Lost connection to cluster node " + peer));
+        }
+
+        Set<Integer> users = nodeUsers.remove(peer);
+        if (users == null) return;
+
+        for (int user : users) removeNode(user, peer);
+    }
+
+    @Override
+    public void onMessage(String peer, ByteBuffer message) {
+        switch (message.get()) {
+            case KIND_PRESENCE -> {
+                int user = message.getInt();
+                setOnline(peer, user, message.get() == 1);
+            }
+
+            case KIND_SNAPSHOT -> {
+                HashSet<Integer> online = new HashSet<>();
+                for (int i = message.getInt(); i > 0; i--) online.add(message.getInt());
+
+                for (int user : nodeUsers.getOrDefault(peer, Set.of())) {
+                    if (!online.contains(user)) setOnline(peer, user, false);
+                }
+
+                for (int user : online) setOnline(peer, user, true);
+            }
+
+            case KIND_DELIVER -> {
+                int[] users = new int[message.getInt()];
+                for (int i = 0; i < users.length; i++) users[i] = message.getInt();
+
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+
+                Broadcast broadcast;
+                try {
+                    broadcast = new Broadcast(new Packet(new ByteArrayInputStream(bytes)));
+                } catch (IOException e) {
+                    Server.log("\033[91;3mInvalid packet from cluster peer " + peer + ": " + e.getMessage() + "\033[0m");
+                    return;
+                }
+
+                deliveriesReceived.incrementAndGet();
+                for (int user : users) broadcast.sendTo(server.presence.sessions(user));
+            }
+
+            case KIND_REQUEST -> {
+                long id = message.getLong();
+                byte op = message.get();
+                int key = message.getInt();
+                long fingerprint = message.getLong();
+                String body = StandardCharsets.UTF_8.decode(message).toString();
+
+                // Served away from the bus's thread, which must keep reading replies for this node's own calls
+                try {
+                    serveExecutor.execute(() -> serve(peer, id, op, key, fingerprint, body));
+                } catch (RejectedExecutionException ignored) {}  // Shutting down, the caller will time out
+            }
+
+            case KIND_RING -> {
+                peerRings.put(peer, message.getLong());
+                settleChanged();
+            }
+
+            case KIND_REPLY -> {
+                PendingCall call = calls.get(message.getLong());
+                boolean ok = message.get() == 1;
+                String body = StandardCharsets.UTF_8.decode(message).toString();
+                if (call == null) return;
+
+                if (ok) call.result.complete(body);
+                else call.result.completeExceptionally(new IOException(body));
+            }
+
+            default -> Server.log("\033[91;3mUnknown message from cluster peer " + peer + "\033[0m");
+        }
+    }
+
+    private void setOnline(String peer, int user, boolean online) {
+        Set<Integer> users = nodeUsers.computeIfAbsent(peer, k -> ConcurrentHashMap.newKeySet());
+
+        if (online) {
+            if (!users.add(user)) return;
+
+            userNodes.compute(user, (k, nodes) -> {
+                if (nodes == null) return new String[] { peer };
+
+                String[] updated = new String[nodes.length + 1];
+                System.arraycopy(nodes, 0, updated, 0, nodes.length);
+                updated[nodes.length] = peer;
+                return updated;
+            });
+        }
+        else if (users.remove(user)) {
+            removeNode(user, peer);
+        }
+    }
+
+    private void removeNode(int user, String peer) {
+        userNodes.computeIfPresent(user, (k, nodes) -> {
+            String[] updated = new String[nodes.length - 1];
+            int j = 0;
+            for (String node : nodes) {
+                if (node.equals(peer)) continue;
+                if (j == updated.length) return nodes;
+
+                updated[j++] = node;
+            }
+
+            return updated.length == 0 ? null : updated;
+        });
+    }
+}
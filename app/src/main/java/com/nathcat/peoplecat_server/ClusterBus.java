@@ -0,0 +1,83 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * <p>Carries messages between the nodes of a cluster of PeopleCat servers.</p>
+ * <p>
+ *     A bus only moves opaque messages, <code>Cluster</code> decides what they contain. Messages sent to a peer
+ *     arrive in the order they were sent, but may be dropped if the peer is disconnected or falling behind, so
+ *     anything sent over the bus must either be safe to lose or be sent again in full when the peer reconnects.
+ * </p>
+ * @see Cluster
+ * @see TcpClusterBus
+ */
+public interface ClusterBus {
+    /**
+     * Receives events from the bus. Methods are called from the bus's own threads.
+     */
+    interface Listener {
+        /**
+         * Called when messages can start being sent to a peer, including after it reconnects. Nothing sent to the
+         * peer before this point is guaranteed to have arrived.
+         * @param peer The ID of the peer
+         */
+        void onPeerConnected(String peer);
+
+        /**
+         * Called when the connection to a peer is lost, so anything known about it may be out of date. Calls to this
+         * and <code>onPeerConnected</code> always alternate for each peer.
+         * @param peer The ID of the peer
+         */
+        void onPeerDisconnected(String peer);
+
+        /**
+         * Called for each message received from a peer
+         * @param peer The ID of the peer which sent the message
+         * @param message The message
+         */
+        void onMessage(String peer, ByteBuffer message);
+    }
+
+    /**
+     * @return The ID of this node
+     */
+    String nodeId();
+
+    /**
+     * Start connecting to peers and receiving messages
+     * @param listener Receives events from the bus
+     * @throws IOException Thrown if the bus cannot start
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Queue a message to be sent to a peer, without waiting for it to be sent
+     * @param peer The ID of the peer
+     * @param message The message, which the bus takes ownership of
+     * @return True if the message was queued, false if it was dropped
+     */
+    boolean send(String peer, ByteBuffer message);
+
+    /**
+     * Queue a message to be sent to every peer
+     * @param message The message, which must not be modified afterwards
+     */
+    default void sendAll(ByteBuffer message) {
+        for (PeerQueue peer : peers()) {
+            send(peer.peer, message.duplicate());
+        }
+    }
+
+    /**
+     * @return The outbound queue of every peer, which also holds its metrics
+     */
+    Collection<PeerQueue> peers();
+
+    /**
+     * Disconnect from every peer and stop the bus's threads
+     */
+    void close();
+}
@@ -1,43 +1,190 @@
 package com.nathcat.peoplecat_server;
 
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.json.simple.JSONObject;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConnectionHandler extends Thread {
+    /**
+     * The transport a connection was accepted through
+     */
+    public enum Transport { TCP, NIO, WEBSOCKET }
+
     private Socket client;
     private WebSocket webClient;
+    private NioConnection nioClient;
     public OutputStream outStream;
     public InputStream inStream;
     public IPacketHandler packetHandler;
-    public boolean authenticated = false;
+    public volatile boolean authenticated = false;
     public JSONObject user;
     public boolean isWebsocket = false;
     public boolean active = false;
+    public final Transport transport;
+    /**
+     * The executor on which this connection's request sequences are handled. By default sequences are handled on
+     * the thread which received them.
+     */
+    public Executor sequenceExecutor = Runnable::run;
+    /**
+     * The thread this handler is running on, if it is not running on its own thread.
+     */
+    private Thread carrier;
+    /**
+     * Packets waiting to be written to the client. If null, packets are written directly by the calling thread.
+     */
+    public OutboundQueue outbound;
+    /**
+     * The pool which outbound packet buffers are returned to once they have been written
+     */
+    public BufferPool bufferPool;
+    /**
+     * The pool which inbound payloads are read into, if null each payload gets its own array
+     */
+    public PayloadPool payloadPool;
+    /**
+     * The codec used for payloads received from, and written to, this connection
+     */
+    public volatile PayloadCodec codec = PayloadCodec.JSON;
+    /**
+     * Runs request sequences which carry a request ID, several at a time. If null, they are run by
+     * <code>sequenceExecutor</code> in order with every other sequence.
+     */
+    public Executor pipelineExecutor;
+    /**
+     * The number of request sequences which may be waiting to be handled or being handled at once, 0 for no limit.
+     * Sequences received beyond this are answered with an error.
+     */
+    public int maxQueuedSequences = 0;
+    /**
+     * The number of request sequences which have been dispatched but not yet handled
+     */
+    private final AtomicInteger queuedSequences = new AtomicInteger();
+    /**
+     * Held from the moment the connection was admitted until it is closed, null if the transport keeps it elsewhere
+     */
+    public AdmissionController.Lease lease;
+    /**
+     * Keeps track of the request sequences being handled, so the server can wait for them before it shuts down
+     */
+    public DrainController drain;
+    /**
+     * The timer watching this connection for inactivity, null if it is not being watched
+     */
+    public IdleTimer idleTimer;
+    /**
+     * Decides which of this connection's packets are dumped to the log, null if packets are never traced
+     */
+    public PacketTracer tracer;
+    /**
+     * Records how long this connection's requests take and how many bytes it sends and receives, null if nothing is
+     * recorded
+     */
+    public Metrics metrics;
+    /**
+     * Requests which take longer than this are logged with the time they spent in each service, 0 to not trace
+     * this connection's requests
+     */
+    public long slowRequestNanos = 0;
+    /**
+     * The idle timer tick at which anything was last received from the client
+     */
+    public volatile long lastActivity;
+    /**
+     * True while a probe sent by the idle timer has not been answered
+     */
+    public volatile boolean probeOutstanding = false;
+    /**
+     * The tick at which the last probe was sent, only used by the idle timer's thread
+     */
+    long probeSentAt = -1;
+    /**
+     * The tick at which the idle timer will next look at this connection, only used by the idle timer's thread
+     */
+    long idleDeadline;
 
     public ConnectionHandler(Socket client, IPacketHandler packetHandler) throws IOException {
         this.client = client;
-        outStream = this.client.getOutputStream();
+        transport = Transport.TCP;
+        // Buffered so that a batch of packets reaches the socket in as few writes as possible, every write path flushes
+        outStream = new BufferedOutputStream(this.client.getOutputStream(), 64 * 1024);
         inStream = this.client.getInputStream();
         this.packetHandler = packetHandler;
 
         setDaemon(true);
-        start();
     }
 
     public ConnectionHandler(WebSocket client, WebSocketOutputStream os, WebSocketInputStream is, IPacketHandler packetHandler) throws IOException {
         webClient = client;
+        transport = Transport.WEBSOCKET;
         this.packetHandler = packetHandler;
         this.outStream = os;
         this.inStream = is;
     }
 
+    public ConnectionHandler(NioConnection client, NioOutputStream os, IPacketHandler packetHandler) {
+        nioClient = client;
+        transport = Transport.NIO;
+        this.packetHandler = packetHandler;
+        this.outStream = os;
+    }
+
+    /**
+     * Start running this handler.
+     * @param virtual If true, the handler runs on a new virtual thread, otherwise it runs on its own platform thread
+     */
+    public void startHandler(boolean virtual) {
+        if (virtual) carrier = Thread.ofVirtual().name(toString()).start(this);
+        else start();
+    }
+
+    /**
+     * Check whether the thread running this handler is still alive.
+     * @return True if the handler's thread is alive and has not been interrupted
+     */
+    public boolean isRunning() {
+        if (carrier != null) return carrier.isAlive() && !carrier.isInterrupted();
+        return isAlive() && !isInterrupted();
+    }
+
     public void log(String message) {
-        System.out.println("Handler " + threadId() + ": " + message);
+        log(message, (Object[]) null);
+    }
+
+    /**
+     * Log an event from this handler with fields
+     * @param message The message
+     * @param fields Alternating keys and values, the values must not change after they are logged
+     */
+    public void log(String message, Object... fields) {
+        log(AsyncLog.Level.INFO, message, fields);
+    }
+
+    /**
+     * Log an event from this handler at a level
+     * @param level The level of the event
+     * @param message The message
+     * @param fields Alternating keys and values, the values must not change after they are logged
+     */
+    public void log(AsyncLog.Level level, String message, Object... fields) {
+        AsyncLog l = Server.logger;
+        if (l != null) l.log(level, this, message, fields);
+        else System.out.println(this + ": " + message);
     }
 
     @Override
@@ -64,7 +211,7 @@ public class ConnectionHandler extends Thread {
      */
     public Packet getPacket() {
         try {
-            return new Packet(inStream);
+            return new Packet(inStream, payloadPool);
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -72,25 +219,370 @@ public class ConnectionHandler extends Thread {
     }
 
     /**
-     * Write a packet to the stream.
+     * Write a packet to the stream. If this handler has an outbound queue the packet is queued rather than written
+     * immediately, but it will never be dropped.
      * @param p The packet to write.
      */
     public void writePacket(Packet p) {
+        if (outbound != null) {
+            outbound.offer(p, false);
+            return;
+        }
+
+        writePackets(new Packet[] { p });
+    }
+
+    /**
+     * Write a complete response sequence. The whole sequence is written with a single flush.
+     * @param packets The packets to write
+     */
+    public void writePackets(Packet[] packets) {
+        if (outbound != null) {
+            outbound.offerAll(packets, null);
+            return;
+        }
+
+        ArrayList<ByteBuffer> encoded = new ArrayList<>(packets.length);
+        for (Packet p : packets) {
+            byte[] bytes = p.getBytes(codec);
+            if (metrics != null) metrics.recordOut(p.type, bytes.length);
+            encoded.add(ByteBuffer.wrap(bytes));
+        }
+
         try {
-            outStream.write(p.getBytes());
-            outStream.flush();
+            writeBatch(encoded);
 
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Write the response to a request sequence, then apply any codec switch the packet handler asked for, so that the
+     * response itself is still encoded with the codec the request was made with.
+     * @param response The response sequence
+     * @param next The codec to switch to once the response has been queued, or null to keep the current codec
+     */
+    public void writeResponse(Packet[] response, PayloadCodec next) {
+        if (outbound != null) outbound.offerAll(response, next);
+        else writePackets(response);
+
+        if (next != null) codec = next;
+    }
+
+    /**
+     * Send a notification which the client did not ask for, such as a new message or a change in presence. Unlike
+     * <code>writePacket</code>, the notification is dropped if the client is not keeping up with the packets
+     * already queued for it.
+     * @param p The packet to send
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean sendNotification(Packet p) {
+        if (tracer != null) tracer.trace(this, "Sent notification", p);
+        if (outbound != null) return outbound.offer(p, true);
+
+        writePacket(p);
+        return true;
+    }
+
+    /**
+     * Send a notification which is being sent to many connections at once. It is dropped under the same conditions
+     * as the notifications passed to <code>sendNotification(Packet)</code>.
+     * @param b The broadcast to send
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean sendNotification(Broadcast b) {
+        if (tracer != null) tracer.trace(this, "Sent notification", b.packet);
+        if (outbound != null) return outbound.offer(b, true);
+
+        writePacket(b.packet);
+        return true;
+    }
+
+    /**
+     * Get the bytes to queue on this connection for a broadcast. Websocket connections which can take complete
+     * frames get the broadcast's shared frame, any other connection gets the shared encoded packet.
+     * @param b The broadcast
+     * @param codec The codec to encode the payload with
+     * @return A read-only view of the shared bytes
+     */
+    public ByteBuffer encode(Broadcast b, PayloadCodec codec) {
+        if (outStream instanceof WebSocketOutputStream ws && ws.acceptsFrames()) return b.webSocketFrame(codec);
+
+        return b.bytes(codec);
+    }
+
+    /**
+     * Write several encoded packets straight to the transport, using a single flush or gathering write where the
+     * transport supports it. This takes ownership of the buffers, pooled buffers are released once they have been
+     * written.
+     * @param batch The encoded packets to write, in order
+     * @throws IOException Thrown if the write fails
+     */
+    public void writeBatch(List<ByteBuffer> batch) throws IOException {
+        if (outStream instanceof NioOutputStream nio) {
+            // The connection releases the buffers itself once the event loop has written them
+            nio.write(batch);
+            return;
+        }
+
+        try {
+            if (outStream instanceof WebSocketOutputStream ws) {
+                ws.write(batch);
+            }
+            else if (client.getChannel() != null) {
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+
+                SocketChannel channel = client.getChannel();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+            }
+            else {
+                for (ByteBuffer buffer : batch) {
+                    if (buffer.hasArray()) {
+                        outStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    }
+                    else {
+                        byte[] bytes = new byte[buffer.remaining()];
+                        buffer.get(bytes);
+                        outStream.write(bytes);
+                    }
+                }
+
+                outStream.flush();
+            }
+        }
+        finally {
+            if (bufferPool != null) {
+                for (ByteBuffer buffer : batch) bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes which have been handed to the transport but not yet sent to the client. Raw TCP
+     * sockets block the writer instead of buffering, so this is always zero for them.
+     * @return The number of bytes buffered by the transport
+     */
+    public long transportBacklog() {
+        if (nioClient != null) return nioClient.pendingBytes();
+
+        if (webClient instanceof WebSocketImpl impl) {
+            long total = 0;
+            for (ByteBuffer buffer : impl.outQueue) {
+                total += buffer.remaining();
+            }
+
+            return total;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Record that something has been received from the client, so the idle timer leaves it alone
+     */
+    public void markActivity() {
+        IdleTimer timer = idleTimer;
+        if (timer != null) lastActivity = timer.now();
+    }
+
+    /**
+     * Check that the client is still there, without waiting for an answer. Websocket clients are sent a ping frame,
+     * which browsers answer without any help from the page, and other clients are sent a ping packet. The client's
+     * answer is replied to like any other ping, so clients should not answer a ping which arrives while they are
+     * waiting for the reply to one of their own.
+     */
+    public void probe() {
+        if (webClient != null) {
+            try {
+                webClient.sendPing();
+            } catch (WebsocketNotConnectedException ignored) {}
+
+            return;
+        }
+
+        sendNotification(Packet.createPing());
+    }
+
+    /**
+     * Hand a complete packet sequence received from the client to the executor which should handle it. Nothing is
+     * decoded on the calling thread, which is usually performing I/O for other connections too. Every sequence
+     * passes through <code>sequenceExecutor</code> in the order it was received, and those with a request ID are then
+     * passed on to the pipeline executor, if there is one, so that they do not hold up the sequences behind them.
+     * Once <code>maxQueuedSequences</code> sequences are waiting or being handled, further sequences are answered
+     * with an error instead.
+     * @param sequence The packet sequence, ending with a final packet
+     */
+    public void dispatch(Packet[] sequence) {
+        markActivity();
+
+        // Anything received answers the idle timer's probe. A ping is still handled as usual, since it cannot be told
+        // apart from a keepalive the client happened to send while the probe was outstanding, which needs its reply.
+        if (probeOutstanding) probeOutstanding = false;
+
+        // Nothing stops the client sending sequences faster than they are handled, so past the limit they are refused
+        // rather than queued
+        int queued = queuedSequences.incrementAndGet();
+        if (maxQueuedSequences > 0 && queued > maxQueuedSequences) {
+            queuedSequences.decrementAndGet();
+            refuse(sequence);
+            return;
+        }
+
+        DrainController d = drain;
+        if (d != null && !d.beginRequest()) {
+            // The server is shutting down and has stopped taking requests
+            queuedSequences.decrementAndGet();
+            Packet.release(sequence);
+            writePacket(d.reconnectLater());
+            return;
+        }
+
+        if (metrics != null) {
+            for (Packet p : sequence) metrics.recordIn(p.type, Packet.HEADER_SIZE + p.length);
+        }
+
+        sequenceExecutor.execute(() -> route(sequence));
+    }
+
+    /**
+     * Answer a sequence which cannot be queued with an error. The request ID, if there is one, has to be decoded here
+     * so that the client can tell which of its requests was refused.
+     */
+    private void refuse(Packet[] sequence) {
+        Object requestId = null;
+        try {
+            sequence[0].codec = codec;
+            requestId = sequence[0].takeRequestId();
+        } catch (IllegalArgumentException ignored) {}
+
+        Packet.release(sequence);
+        Packet error = Packet.createError("Too many requests", "Wait for responses before sending more requests");
+        writePacket(requestId == null ? error : Packet.withRequestId(error, requestId));
+        log(AsyncLog.Level.DEBUG, "Refused a request sequence, " + maxQueuedSequences + " already queued");
+    }
+
+    /**
+     * Handle a sequence, or pass it on to the pipeline executor if it has a request ID. Sequences reach this in the
+     * order they were received, after any sequence before them without a request ID has been handled, so they are
+     * stamped with the codec here rather than on receipt, and a codec switch applies to the very next sequence even
+     * if the client sent it before the switch's response arrived.
+     */
+    private void route(Packet[] sequence) {
+        for (Packet p : sequence) p.codec = codec;
+        if (tracer != null) tracer.trace(this, "Received packet", sequence);
+
+        Object requestId;
+        try {
+            requestId = sequence[0].takeRequestId();
+
+        } catch (IllegalArgumentException e) {
+            Packet.release(sequence);
+            writePacket(Packet.createError("Invalid request ID", e.getMessage()));
+            queuedSequences.decrementAndGet();
+            if (drain != null) drain.endRequest();
+            return;
+        }
+
+        if (requestId != null && pipelineExecutor != null) {
+            pipelineExecutor.execute(() -> handleSequence(sequence, requestId));
+        }
+        else {
+            handleSequence(sequence, requestId);
+        }
+    }
+
+    /**
+     * Pass a complete packet sequence to the packet handler and write the response sequence to the client. Any
+     * error which occurs while handling the sequence is reported to the client as an error packet. The packets in
+     * the sequence are released once the response has been queued.
+     * @param sequence The packet sequence, ending with a final packet, which has already been stamped with the codec
+     *                 it was received with
+     * @param requestId The ID the client gave the request, which is added to every packet of the response, or null
+     */
+    public void handleSequence(Packet[] sequence, Object requestId) {
+        int type = sequence[0].type;
+        long started = System.nanoTime();
+        boolean recorded = false;
+        JSONObject u = user;
+        RequestTrace trace = RequestTrace.begin(type, u != null && u.get("id") instanceof Number id ? id.intValue() : -1, slowRequestNanos > 0);
+        ServerEvents.PacketHandle event = new ServerEvents.PacketHandle();
+        event.begin();
+        try {
+            Packet[] response = packetHandler.handle(this, sequence);
+            boolean error = response != null && response.length > 0 && response[0].type == Packet.TYPE_ERROR;
+            event.end();
+            recorded = true;
+            if (metrics != null) metrics.recordRequest(type, System.nanoTime() - started, error);
+            if (event.shouldCommit()) {
+                event.packets = sequence.length;
+                event.error = error;
+                event.finish();
+            }
+
+            if (response == null) return;
+
+            if (requestId != null) {
+                for (int i = 0; i < response.length; i++) response[i] = Packet.withRequestId(response[i], requestId);
+            }
+
+            if (tracer != null) tracer.trace(this, "Sent packet", response);
+            writeResponse(response, sequence[0].switchCodec);
+        }
+        catch (Exception e) {
+            if (!recorded) {
+                if (metrics != null) metrics.recordRequest(type, System.nanoTime() - started, true);
+                if (event.shouldCommit()) {
+                    event.packets = sequence.length;
+                    event.error = true;
+                    event.finish();
+                }
+            }
+
+            Packet error = Packet.createError(e.getClass().getName(), e.getMessage());
+            writePacket(requestId == null ? error : Packet.withRequestId(error, requestId));
+            if (Server.isLoggable(AsyncLog.Level.WARN)) {
+                log(AsyncLog.Level.WARN, "Written error message: \033[91;3m" + e.getClass().getName() + ": " + e.getMessage() + "\n" + Server.stringifyStackTrace(e.getStackTrace()) + "\033[0m");
+            }
+        }
+        finally {
+            // The responses have been encoded, so the request payloads can go back to the pool
+            Packet.release(sequence);
+            queuedSequences.decrementAndGet();
+            if (drain != null) drain.endRequest();
+
+            trace.end();
+            if (slowRequestNanos > 0) {
+                long elapsed = System.nanoTime() - started;
+                if (elapsed >= slowRequestNanos) logSlowRequest(type, elapsed, trace);
+            }
+        }
+    }
+
+    private void logSlowRequest(int type, long elapsed, RequestTrace trace) {
+        Object[] stages = trace.fields(elapsed);
+        Object[] fields = new Object[stages.length + 2];
+        fields[0] = "type";
+        fields[1] = Metrics.nameOf(type);
+        System.arraycopy(stages, 0, fields, 2, stages.length);
+
+        log(AsyncLog.Level.WARN, "Slow request", fields);
+    }
+
     /**
      * Close the socket
      */
     public void close() {
+        if (outbound != null) outbound.close();
+        if (lease != null) lease.release();
+
         try {
             if (client != null) client.close();
+            else if (nioClient != null) nioClient.close();
             else webClient.close();
 
             active = false;
@@ -101,8 +593,4 @@ public class ConnectionHandler extends Thread {
     public boolean equals(Object obj) {
         return obj.getClass() == ConnectionHandler.class && ((ConnectionHandler) obj).threadId() == this.threadId();
     }
-
-    public long threadId() {
-        return this.getId();
-    }
 }
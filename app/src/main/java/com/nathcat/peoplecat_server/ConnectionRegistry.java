@@ -0,0 +1,137 @@
+package com.nathcat.peoplecat_server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of every open connection to the server. Handlers are registered when their connection is accepted
+ * and deregistered when it is closed, so no polling is required to keep the registry up to date. Counters are kept
+ * alongside the connections so that admission checks and statistics never need to walk the registry.
+ */
+public class ConnectionRegistry {
+    private final ConcurrentHashMap<Long, ClientHandler> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger authenticated = new AtomicInteger();
+    private final AtomicInteger[] perTransport = new AtomicInteger[ConnectionHandler.Transport.values().length];
+    /**
+     * Watches every registered connection for inactivity, null if idle connections are left open
+     */
+    public IdleTimer idleTimer;
+
+    public ConnectionRegistry() {
+        for (int i = 0; i < perTransport.length; i++) {
+            perTransport[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Register a newly accepted connection, provided the server has not reached its connection limit.
+     * @param handler The handler of the new connection
+     * @param limit The maximum number of connections the server may hold
+     * @return True if the connection was registered, false if the server is full
+     */
+    public boolean register(ClientHandler handler, int limit) {
+        int current;
+        do {
+            current = total.get();
+            if (current >= limit) return false;
+        } while (!total.compareAndSet(current, current + 1));
+
+        if (connections.putIfAbsent(handler.threadId(), handler) != null) {
+            total.decrementAndGet();
+            return true;
+        }
+
+        perTransport[handler.transport.ordinal()].incrementAndGet();
+        if (idleTimer != null) idleTimer.watch(handler);
+        return true;
+    }
+
+    /**
+     * Remove a connection from the registry. Calling this more than once for the same handler has no effect.
+     * @param handler The handler of the closed connection
+     */
+    public void deregister(ClientHandler handler) {
+        if (connections.remove(handler.threadId(), handler)) {
+            total.decrementAndGet();
+            perTransport[handler.transport.ordinal()].decrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a registered connection has authenticated
+     */
+    public void onAuthenticated() {
+        authenticated.incrementAndGet();
+    }
+
+    /**
+     * Record that a previously authenticated connection is no longer authenticated
+     */
+    public void onDeAuthenticated() {
+        authenticated.decrementAndGet();
+    }
+
+    /**
+     * Get a handler by its ID
+     * @param id The handler's ID
+     * @return The handler, or null if there is no open connection with this ID
+     */
+    public ClientHandler get(long id) {
+        return connections.get(id);
+    }
+
+    /**
+     * @return A live view of all registered handlers
+     */
+    public Collection<ClientHandler> handlers() {
+        return connections.values();
+    }
+
+    /**
+     * @return The total number of open connections
+     */
+    public int count() {
+        return total.get();
+    }
+
+    /**
+     * @return The number of open connections which have authenticated
+     */
+    public int authenticatedCount() {
+        return authenticated.get();
+    }
+
+    /**
+     * @param transport The transport to count connections for
+     * @return The number of open connections using the given transport
+     */
+    public int count(ConnectionHandler.Transport transport) {
+        return perTransport[transport.ordinal()].get();
+    }
+
+    /**
+     * @return The total number of bytes queued for writing across every open connection
+     */
+    public long outboundQueuedBytes() {
+        long total = 0;
+        for (ClientHandler h : handlers()) {
+            if (h.outbound != null) total += h.outbound.queuedBytes();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return The number of open connections currently treated as slow consumers
+     */
+    public int slowConsumerCount() {
+        int count = 0;
+        for (ClientHandler h : handlers()) {
+            if (h.outbound != null && h.outbound.isSlowConsumer()) count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,230 @@
+package com.nathcat.peoplecat_server;
+
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+import org.java_websocket.exceptions.InvalidDataException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * <p>The <code>permessage-deflate</code> websocket extension, with a configurable compression level, minimum message
+ * size and context takeover policy, which keeps count of how much it compresses and how long it spends doing so.</p>
+ * <p>
+ *     One instance is given to the websocket draft as a template, and every connection which negotiates the
+ *     extension gets its own copy through <code>copyInstance()</code>, so the counters on an instance describe a
+ *     single connection. The template's <code>Totals</code> are shared by every copy and describe the whole server.
+ * </p>
+ * <p>
+ *     Messages smaller than the threshold are sent uncompressed, since deflating a handful of bytes costs CPU and
+ *     often makes them larger. Byte counts include uncompressed messages, so the ratio is an honest measure of what
+ *     the extension saves on the wire.
+ * </p>
+ */
+public class DeflateExtension extends PerMessageDeflateExtension {
+    /**
+     * Which sides of the connection keep their compression context from one message to the next. Keeping the
+     * context gives better compression of similar messages, at the cost of around 300 KiB of memory per connection
+     * for each side which keeps it.
+     */
+    public enum ContextTakeover {
+        /**
+         * Both the server and the client keep their context
+         */
+        BOTH,
+        /**
+         * Only the client keeps its context, the server starts every message from scratch
+         */
+        CLIENT,
+        /**
+         * Neither side keeps its context
+         */
+        NONE
+    }
+
+    /**
+     * Counters shared by every connection using the extension
+     */
+    public static class Totals {
+        public final LongAdder rawBytesOut = new LongAdder();
+        public final LongAdder wireBytesOut = new LongAdder();
+        public final LongAdder rawBytesIn = new LongAdder();
+        public final LongAdder wireBytesIn = new LongAdder();
+        public final LongAdder deflateNanos = new LongAdder();
+        public final LongAdder inflateNanos = new LongAdder();
+
+        @Override
+        public String toString() {
+            return DeflateExtension.describe(rawBytesOut.sum(), wireBytesOut.sum(), rawBytesIn.sum(), wireBytesIn.sum(),
+                    deflateNanos.sum(), inflateNanos.sum());
+        }
+    }
+
+    private final int level;
+    private final ContextTakeover contextTakeover;
+    private final Totals totals;
+    /**
+     * True if the server discards its compression context after every message, either because of the policy or
+     * because the client asked it to
+     */
+    private boolean resetServerContext;
+
+    /**
+     * Bytes of outbound messages before compression
+     */
+    public volatile long rawBytesOut = 0;
+    /**
+     * Bytes of outbound messages after compression
+     */
+    public volatile long wireBytesOut = 0;
+    /**
+     * Bytes of inbound messages after decompression
+     */
+    public volatile long rawBytesIn = 0;
+    /**
+     * Bytes of inbound messages as they were received
+     */
+    public volatile long wireBytesIn = 0;
+    /**
+     * Time spent compressing outbound messages. Compression runs on the thread which sends the message without
+     * blocking, so this is effectively CPU time.
+     */
+    public volatile long deflateNanos = 0;
+    /**
+     * Time spent decompressing inbound messages
+     */
+    public volatile long inflateNanos = 0;
+
+    /**
+     * Create a new extension template
+     * @param level The compression level, from 0 to 9, or <code>Deflater.DEFAULT_COMPRESSION</code>
+     * @param threshold Messages smaller than this number of bytes are not compressed
+     * @param contextTakeover Which sides keep their compression context between messages
+     * @param totals Counters shared by every copy of this extension
+     */
+    public DeflateExtension(int level, int threshold, ContextTakeover contextTakeover, Totals totals) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+
+        this.level = level;
+        this.contextTakeover = contextTakeover;
+        this.totals = totals;
+        resetServerContext = contextTakeover != ContextTakeover.BOTH;
+
+        // The server side reset is handled here rather than by the superclass, which would replace the deflater with
+        // one using the default level
+        setServerNoContextTakeover(false);
+        setClientNoContextTakeover(contextTakeover == ContextTakeover.NONE);
+        setThreshold(threshold);
+
+        getDeflater().end();
+        setDeflater(new Deflater(level, true));
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new DeflateExtension(level, getThreshold(), contextTakeover, totals);
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+        if (!super.acceptProvidedExtensionAsServer(inputExtension)) return false;
+
+        // Honour a client which asks us not to keep our context, the superclass only looks at the client's own flag
+        for (String offer : inputExtension.split(",")) {
+            ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(offer);
+            if (!"permessage-deflate".equalsIgnoreCase(data.getExtensionName())) continue;
+
+            if (data.getExtensionParameters().containsKey("server_no_context_takeover")) resetServerContext = true;
+            break;
+        }
+
+        return true;
+    }
+
+    @Override
+    public String getProvidedExtensionAsServer() {
+        return "permessage-deflate"
+                + (resetServerContext ? "; server_no_context_takeover" : "")
+                + (isClientNoContextTakeover() ? "; client_no_context_takeover" : "");
+    }
+
+    @Override
+    public synchronized void encodeFrame(Framedata frame) {
+        if (!(frame instanceof DataFrame)) return;
+
+        ByteBuffer payload = frame.getPayloadData();
+        int raw = payload.remaining();
+        if (raw < getThreshold()) {
+            count(raw, raw, 0);
+            return;
+        }
+
+        // The superclass compresses the whole of the payload's backing array, so it needs a heap buffer which holds
+        // exactly the payload. Outbound packets are encoded into pooled direct buffers, so usually have to be copied.
+        if (!payload.hasArray() || payload.arrayOffset() != 0 || payload.position() != 0 || payload.array().length != raw) {
+            byte[] copy = new byte[raw];
+            payload.duplicate().get(copy);
+            ((FramedataImpl1) frame).setPayload(ByteBuffer.wrap(copy));
+        }
+
+        long start = System.nanoTime();
+        super.encodeFrame(frame);
+        if (resetServerContext && frame.isFin()) getDeflater().reset();
+        long elapsed = System.nanoTime() - start;
+
+        count(raw, frame.getPayloadData().remaining(), elapsed);
+    }
+
+    private void count(int raw, int wire, long nanos) {
+        rawBytesOut += raw;
+        wireBytesOut += wire;
+        deflateNanos += nanos;
+        totals.rawBytesOut.add(raw);
+        totals.wireBytesOut.add(wire);
+        totals.deflateNanos.add(nanos);
+    }
+
+    @Override
+    public void decodeFrame(Framedata frame) throws InvalidDataException {
+        if (!(frame instanceof DataFrame)) return;
+
+        int wire = frame.getPayloadData().remaining();
+        long start = System.nanoTime();
+        super.decodeFrame(frame);
+        long elapsed = System.nanoTime() - start;
+        int raw = frame.getPayloadData().remaining();
+
+        rawBytesIn += raw;
+        wireBytesIn += wire;
+        inflateNanos += elapsed;
+        totals.rawBytesIn.add(raw);
+        totals.wireBytesIn.add(wire);
+        totals.inflateNanos.add(elapsed);
+    }
+
+    /**
+     * @return The ratio of outbound message bytes to the bytes actually sent, 1 if nothing has been sent
+     */
+    public double compressionRatio() {
+        long wire = wireBytesOut;
+        return wire == 0 ? 1 : (double) rawBytesOut / wire;
+    }
+
+    private static String describe(long rawOut, long wireOut, long rawIn, long wireIn, long deflateNanos, long inflateNanos) {
+        return String.format("out %d -> %d bytes (x%.2f, %.1f ms), in %d -> %d bytes (x%.2f, %.1f ms)",
+                rawOut, wireOut, wireOut == 0 ? 1.0 : (double) rawOut / wireOut, deflateNanos / 1e6,
+                wireIn, rawIn, wireIn == 0 ? 1.0 : (double) rawIn / wireIn, inflateNanos / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateExtension " + describe(rawBytesOut, wireBytesOut, rawBytesIn, wireBytesIn, deflateNanos, inflateNanos);
+    }
+}
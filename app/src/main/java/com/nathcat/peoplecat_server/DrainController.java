@@ -0,0 +1,262 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>Shuts the server down without losing work, so that instances can be restarted one at a time during a deploy.</p>
+ * <p>
+ *     Draining happens in stages, all bounded by a single deadline:
+ * </p>
+ * <ol>
+ *     <li>New connections are refused and the listening sockets are closed.</li>
+ *     <li>
+ *         Every connection is sent a <code>TYPE_RECONNECT_LATER</code> packet. The packets are spread over a window in
+ *         a random order, and each carries a random delay before the client should reconnect, so clients neither leave
+ *         nor come back all at once.
+ *     </li>
+ *     <li>
+ *         New request sequences are answered with another <code>TYPE_RECONNECT_LATER</code> packet, and the server
+ *         waits for the sequences already being handled to finish, so a message is either stored completely or not
+ *         accepted at all.
+ *     </li>
+ *     <li>The server waits for queued responses to be written, then closes every remaining connection.</li>
+ *     <li>
+ *         The transports are stopped, outstanding push notifications are given the rest of the deadline to be sent,
+ *         and the executors and the database connection are shut down.
+ *     </li>
+ * </ol>
+ */
+public class DrainController {
+    /**
+     * How often the controller checks whether a stage has finished, and the length of each step of the window over
+     * which reconnect packets are sent
+     */
+    private static final long STEP_MILLIS = 50;
+    /**
+     * Time reserved at the end of the deadline for closing connections and shutting down
+     */
+    private static final long SHUTDOWN_MILLIS = 2000;
+
+    private final Server server;
+    private final ArrayList<Closeable> listeners = new ArrayList<>();
+    private final ArrayList<Runnable> stopTasks = new ArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger pendingPushes = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean draining = false;
+    private volatile boolean refusingRequests = false;
+    private volatile long deadline;
+    /**
+     * Set once the draining thread has been interrupted, after which the drain finishes without waiting. Only used by
+     * the draining thread.
+     */
+    private boolean interrupted = false;
+
+    public DrainController(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Add a listening socket to close when draining starts
+     * @param listener The listener
+     */
+    public synchronized void addListener(Closeable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Add a task which stops a transport, run once every connection has been closed
+     * @param task The task
+     */
+    public synchronized void onStop(Runnable task) {
+        stopTasks.add(task);
+    }
+
+    /**
+     * @return True once draining has started
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Record that a request sequence is about to be handled. Every call which returns true must be followed by a call
+     * to <code>endRequest()</code>.
+     * @return True if the sequence may be handled, false if the server is no longer taking requests
+     */
+    public boolean beginRequest() {
+        inFlight.incrementAndGet();
+        if (refusingRequests) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Record that a request sequence has been handled
+     */
+    public void endRequest() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return The number of request sequences currently being handled
+     */
+    public int inFlightRequests() {
+        return inFlight.get();
+    }
+
+    /**
+     * Keep track of a push notification which is being sent, so that draining can wait for it
+     * @param push The result of sending the notification
+     */
+    public void trackPush(CompletableFuture<?> push) {
+        if (push == null) return;
+
+        pendingPushes.incrementAndGet();
+        push.whenComplete((r, e) -> pendingPushes.decrementAndGet());
+    }
+
+    /**
+     * Create a reconnect later packet with a random delay before the client should reconnect
+     * @return The packet
+     */
+    public Packet reconnectLater() {
+        long retryAfter = ThreadLocalRandom.current().nextLong(Math.max(1, server.reconnectJitterMillis));
+        return Packet.createReconnectLater(retryAfter, Math.max(0, deadline - System.currentTimeMillis()),
+                "The server is restarting");
+    }
+
+    /**
+     * Drain and shut down the server, returning once it has stopped. Only the first call has any effect, later calls
+     * return straight away.
+     */
+    public void drain() {
+        if (!started.compareAndSet(false, true)) return;
+
+        long start = System.currentTimeMillis();
+        deadline = start + server.drainTimeoutMillis;
+        long stopBy = Math.max(start, deadline - SHUTDOWN_MILLIS);
+        Server.log("Draining, " + server.connections.count() + " connections open, deadline in " + server.drainTimeoutMillis + "ms");
+
+        // Stop taking connections
+        draining = true;
+        server.admission.refuseAll();
+        synchronized (this) {
+            for (Closeable listener : listeners) {
+                try {
+                    listener.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        // Ask clients to leave, a few at a time
+        ArrayList<ClientHandler> handlers = new ArrayList<>(server.connections.handlers());
+        Collections.shuffle(handlers);
+        long window = Math.max(0, Math.min(server.drainSpreadMillis, stopBy - System.currentTimeMillis()));
+        long steps = Math.max(1, window / STEP_MILLIS);
+        for (int step = 0, sent = 0; step < steps; step++) {
+            int target = (int) ((long) handlers.size() * (step + 1) / steps);
+            for (; sent < target; sent++) handlers.get(sent).writePacket(reconnectLater());
+
+            if (step < steps - 1) sleep(STEP_MILLIS);
+        }
+
+        // Let the requests already being handled finish
+        refusingRequests = true;
+        if (!await(() -> inFlight.get() == 0, stopBy)) {
+            Server.log("\033[91;3mDrain deadline reached with " + inFlight.get() + " requests still being handled\033[0m");
+        }
+
+        await(() -> server.connections.outboundQueuedBytes() == 0, stopBy);
+
+        for (ClientHandler h : server.connections.handlers()) {
+            h.close();
+        }
+
+        synchronized (this) {
+            for (Runnable task : stopTasks) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Server.log("\033[91;3mFailed to stop transport: " + e.getMessage() + "\033[0m");
+                }
+            }
+        }
+
+        if (server.idleTimer != null) server.idleTimer.interrupt();
+
+        if (!await(() -> pendingPushes.get() == 0, deadline)) {
+            Server.log("\033[91;3m" + pendingPushes.get() + " push notifications were not sent before the deadline\033[0m");
+        }
+
+        shutdown(server.handlerExecutor);
+        shutdown(server.writerExecutor);
+        shutdown(server.virtualThreadExecutor);
+        server.db.close();
+
+        Server.log("Drained in " + (System.currentTimeMillis() - start) + "ms");
+        if (Server.logger != null) Server.logger.close();
+
+        // Only restored now, since every wait above would return at once while the flag is set
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Wait for a condition to become true
+     * @return True if the condition became true before the deadline
+     */
+    private boolean await(BooleanSupplier condition, long until) {
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= until || !sleep(STEP_MILLIS)) return condition.getAsBoolean();
+        }
+
+        return true;
+    }
+
+    private void shutdown(ExecutorService executor) {
+        if (executor == null) return;
+
+        executor.shutdown();
+        if (interrupted) return;
+
+        try {
+            executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            wasInterrupted();
+        }
+    }
+
+    /**
+     * Sleep, unless the draining thread has been interrupted
+     * @return False if the thread has been interrupted, now or before
+     */
+    private boolean sleep(long millis) {
+        if (interrupted) return false;
+
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            wasInterrupted();
+            return false;
+        }
+    }
+
+    private void wasInterrupted() {
+        interrupted = true;
+        Server.log("\033[91;3mDrain interrupted, finishing without waiting any longer\033[0m");
+    }
+}
@@ -0,0 +1,189 @@
+package com.nathcat.peoplecat_server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>Assigns keys, such as chat IDs, to the nodes of a cluster by consistent hashing.</p>
+ * <p>
+ *     Each node is placed on a ring of 64 bit positions at many pseudo random points, its virtual nodes, and a key
+ *     belongs to the node owning the first point at or after the key's own position. When a node joins or leaves,
+ *     only the keys between its points and the points before them change owner, about one key in every
+ *     <code>n</code> for <code>n</code> nodes, and having many points per node keeps each node's share close to even.
+ * </p>
+ * <p>
+ *     The ring is stored as a sorted array of positions and a matching array of owners, which are replaced together
+ *     whenever the membership changes, so finding an owner is a binary search without any locking.
+ * </p>
+ */
+public class HashRing {
+    private static final class Points {
+        final long[] positions;
+        final String[] owners;
+        final Set<String> members;
+        final long fingerprint;
+
+        Points(long[] positions, String[] owners, Set<String> members, long fingerprint) {
+            this.positions = positions;
+            this.owners = owners;
+            this.members = members;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final double RING_SIZE = Math.pow(2, 64);
+
+    private final int virtualNodes;
+    private volatile Points points = new Points(new long[0], new String[0], Set.of(), 0);
+
+    /**
+     * @param virtualNodes The number of points each node is placed at
+     */
+    public HashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    /**
+     * Add a node to the ring. Adding a node which is already a member has no effect.
+     * @param node The ID of the node
+     * @return True if the membership changed
+     */
+    public synchronized boolean add(String node) {
+        if (points.members.contains(node)) return false;
+
+        TreeSet<String> members = new TreeSet<>(points.members);
+        members.add(node);
+        rebuild(members);
+        return true;
+    }
+
+    /**
+     * Remove a node from the ring. Removing a node which is not a member has no effect.
+     * @param node The ID of the node
+     * @return True if the membership changed
+     */
+    public synchronized boolean remove(String node) {
+        if (!points.members.contains(node)) return false;
+
+        TreeSet<String> members = new TreeSet<>(points.members);
+        members.remove(node);
+        rebuild(members);
+        return true;
+    }
+
+    private void rebuild(TreeSet<String> members) {
+        long[] positions = new long[members.size() * virtualNodes];
+        String[] owners = new String[positions.length];
+
+        // Sort the points by position, ties go to the lower node ID so every node builds the same ring
+        long[][] pairs = new long[positions.length][];
+        String[] byIndex = members.toArray(new String[0]);
+        int n = 0;
+        for (int m = 0; m < byIndex.length; m++) {
+            byte[] id = byIndex[m].getBytes(StandardCharsets.UTF_8);
+            for (int v = 0; v < virtualNodes; v++) {
+                pairs[n++] = new long[] { pointOf(id, v), m };
+            }
+        }
+
+        Arrays.sort(pairs, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (int i = 0; i < pairs.length; i++) {
+            positions[i] = pairs[i][0];
+            owners[i] = byIndex[(int) pairs[i][1]];
+        }
+
+        // Every node with the same members gets the same fingerprint, since the members are visited in order
+        long fingerprint = 0;
+        for (String member : byIndex) {
+            for (byte b : member.getBytes(StandardCharsets.UTF_8)) fingerprint = mix(fingerprint * 31 + b);
+            fingerprint = mix(fingerprint * 31 + members.size());
+        }
+
+        points = new Points(positions, owners, Set.copyOf(members), fingerprint);
+    }
+
+    /**
+     * Find the node which owns a key
+     * @param key The key
+     * @return The ID of the owning node, or null if the ring is empty
+     */
+    public String owner(long key) {
+        Points p = points;
+        if (p.positions.length == 0) return null;
+
+        int i = Arrays.binarySearch(p.positions, mix(key));
+        if (i < 0) i = -i - 1;
+        if (i == p.positions.length) i = 0;
+
+        return p.owners[i];
+    }
+
+    /**
+     * @return A hash of the current members, which is equal on two rings exactly when they have the same members,
+     *         barring collisions
+     */
+    public long fingerprint() {
+        return points.fingerprint;
+    }
+
+    /**
+     * @return The current members of the ring
+     */
+    public Set<String> members() {
+        return points.members;
+    }
+
+    /**
+     * Estimate the share of keys a node owns, from the lengths of the arcs ending at its points
+     * @param node The ID of the node
+     * @return The node's share, between 0 and 1
+     */
+    public double share(String node) {
+        Points p = points;
+        if (p.positions.length == 0) return 0;
+
+        if (p.positions.length == 1) return p.owners[0].equals(node) ? 1 : 0;
+
+        double total = 0;
+        for (int i = 0; i < p.positions.length; i++) {
+            if (!p.owners[i].equals(node)) continue;
+
+            // Arcs are unsigned 64 bit distances, so the first arc wraps around the end of the ring
+            long previous = i == 0 ? p.positions[p.positions.length - 1] : p.positions[i - 1];
+            total += unsigned(p.positions[i] - previous);
+        }
+
+        return total / RING_SIZE;
+    }
+
+    private static double unsigned(long value) {
+        return (double) (value >>> 1) * 2 + (value & 1);
+    }
+
+    /**
+     * The position of a node's virtual node, from a 64 bit FNV-1a hash of its ID and index
+     */
+    private static long pointOf(byte[] id, int index) {
+        long h = 0xCBF2_9CE4_8422_2325L;
+        for (byte b : id) {
+            h ^= b & 0xFF;
+            h *= 0x0000_0100_0000_01B3L;
+        }
+
+        return mix(h ^ index);
+    }
+
+    /**
+     * Spread a value across the whole ring, the finalizer of MurmurHash3
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51_AFD7_ED55_8CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CE_B9FE_1A85_EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
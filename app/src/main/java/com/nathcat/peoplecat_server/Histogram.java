@@ -0,0 +1,107 @@
+package com.nathcat.peoplecat_server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of durations in nanoseconds, which many threads can record into without locking.</p>
+ * <p>
+ *     Values are counted in buckets laid out like those of HdrHistogram. Values below 32 each have their own bucket,
+ *     and every power of two above that is split into 16 buckets of equal width, so a bucket's width is never more
+ *     than about 6% of the values in it, whatever their magnitude. Recording a value is a few shifts and one atomic
+ *     increment, and percentiles are read by walking the buckets.
+ * </p>
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value
+     * @param value The value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return The number of values recorded
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of every value recorded
+     */
+    public long sum() {
+        return sum.get();
+    }
+
+    /**
+     * @return The largest value recorded
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if there are none
+     */
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Find the value below which a fraction of the recorded values fall
+     * @param quantile The fraction, between 0 and 1
+     * @return The highest value in the bucket holding the quantile, never more than the largest value recorded
+     */
+    public long percentile(double quantile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+
+        if (n == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(highestValueIn(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Values below <code>2 * SUB_COUNT</code> get a bucket each. Above that, a value whose highest bit is
+     * <code>SUB_BITS + m</code> is shifted right by <code>m</code>, leaving a number between <code>SUB_COUNT</code> and
+     * <code>2 * SUB_COUNT</code> which picks one of the magnitude's buckets.
+     */
+    static int bucketOf(long value) {
+        int magnitude = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return magnitude * SUB_COUNT + (int) (value >>> magnitude);
+    }
+
+    static long highestValueIn(int bucket) {
+        int magnitude = Math.max(0, bucket / SUB_COUNT - 1);
+        long sub = bucket - (long) magnitude * SUB_COUNT;
+        return ((sub + 1) << magnitude) - 1;
+    }
+}
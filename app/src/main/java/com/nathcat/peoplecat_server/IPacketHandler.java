@@ -211,6 +211,24 @@ public interface IPacketHandler {
      */
     Packet[] pushUnsubscribe(ConnectionHandler handler, Packet[] packets);
 
+    /**
+     * Handles a reconnect later packet, which only the server should send
+     * @param handler The handler handling the connection
+     * @param packets The packet sequence from the endpoint
+     * @return The packet sequence to reply with
+     * @see Packet#TYPE_RECONNECT_LATER
+     */
+    Packet[] reconnectLater(ConnectionHandler handler, Packet[] packets);
+
+    /**
+     * Handle a request for the server's metrics
+     * @param handler The handler handling the connection
+     * @param packets The packet sequence from the endpoint
+     * @return The packet sequence to reply with
+     * @see Packet#TYPE_GET_METRICS
+     */
+    Packet[] getMetrics(ConnectionHandler handler, Packet[] packets);
+
     /**
      * Handle a packet sequence by determining which handler method to pass it to. Uses the type of the first packet
      * in the sequence to determine the appropriate handler method.
@@ -244,6 +262,8 @@ public interface IPacketHandler {
             case Packet.TYPE_ADD_TO_CHAT -> addToChat(handler, packets);
             case Packet.TYPE_PUSH_SUBSCRIBE -> pushSubscribe(handler, packets);
             case Packet.TYPE_PUSH_UNSUBSCRIBE -> pushUnsubscribe(handler, packets);
+            case Packet.TYPE_RECONNECT_LATER -> reconnectLater(handler, packets);
+            case Packet.TYPE_GET_METRICS -> getMetrics(handler, packets);
 
             default -> throw new IllegalStateException("Unexpected value: " + packets[0].type);
         };
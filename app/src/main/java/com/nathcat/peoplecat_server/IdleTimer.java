@@ -0,0 +1,178 @@
+package com.nathcat.peoplecat_server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Closes connections which have stopped responding, such as mobile clients which have dropped off the network
+ * without closing their socket.</p>
+ * <p>
+ *     Time is divided into ticks. Once a connection has received nothing for the idle period it is sent a probe, and
+ *     if it still has received nothing once the probe period has passed it is closed. Receiving anything from the
+ *     client, including its answer to the probe, only records the current tick on its handler, so the threads
+ *     performing I/O never touch the timer's state.
+ * </p>
+ * <p>
+ *     Connections are kept in a hashed timing wheel, a ring of slots with one slot for each tick, which is large
+ *     enough that no connection is ever scheduled more than one turn ahead. Each tick the timer only looks at the
+ *     connections in the current slot. A connection which has been active since it was scheduled is simply moved to
+ *     the slot for the tick at which it will next have been idle for the full period, so each connection is looked at
+ *     about once per idle period however busy it is, and each look is constant time. Closed connections are dropped
+ *     when their slot next comes round rather than being searched for.
+ * </p>
+ */
+public class IdleTimer extends Thread {
+    private final ConnectionRegistry registry;
+    private final Executor closeExecutor;
+    private final long tickNanos;
+    private final long idleTicks;
+    private final long probeTicks;
+    private final ArrayList<ArrayList<ClientHandler>> wheel;
+    private final int mask;
+    /**
+     * Replaces the current slot while it is processed, so connections rescheduled a whole turn ahead do not land in
+     * the list being iterated
+     */
+    private ArrayList<ClientHandler> spare = new ArrayList<>();
+    /**
+     * Connections registered since the last tick, added to the wheel by the timer thread
+     */
+    private final ConcurrentLinkedQueue<ClientHandler> pending = new ConcurrentLinkedQueue<>();
+    private volatile long tick = 0;
+
+    /**
+     * Number of probes sent
+     */
+    public final AtomicLong probesSent = new AtomicLong();
+    /**
+     * Number of connections closed for not answering a probe
+     */
+    public final AtomicLong idleCloses = new AtomicLong();
+
+    /**
+     * Create a new idle timer. The timer must be started before it does anything.
+     * @param registry The registry of open connections, connections which are no longer in it are forgotten
+     * @param closeExecutor Runs the closing of unresponsive connections, which may block
+     * @param tickMillis The length of a tick, which is the precision of the timer
+     * @param idleMillis How long a connection may receive nothing before it is probed
+     * @param probeMillis How long a probed connection has to answer before it is closed
+     */
+    public IdleTimer(ConnectionRegistry registry, Executor closeExecutor, long tickMillis, long idleMillis, long probeMillis) {
+        this.registry = registry;
+        this.closeExecutor = closeExecutor;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        idleTicks = Math.max(1, (idleMillis + tickMillis - 1) / tickMillis);
+        probeTicks = Math.max(1, (probeMillis + tickMillis - 1) / tickMillis);
+
+        long span = Math.max(idleTicks, probeTicks) + 1;
+        int size = 64;
+        while (size < span) size <<= 1;
+
+        wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) wheel.add(new ArrayList<>());
+        mask = size - 1;
+
+        setName("IdleTimer");
+        setDaemon(true);
+    }
+
+    /**
+     * @return The current tick, which handlers record as the time of their last activity
+     */
+    public long now() {
+        return tick;
+    }
+
+    /**
+     * Start watching a newly registered connection. May be called from any thread.
+     * @param handler The connection's handler
+     */
+    public void watch(ClientHandler handler) {
+        handler.idleTimer = this;
+        handler.lastActivity = tick;
+        pending.add(handler);
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime() + tickNanos;
+        while (true) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                continue;
+            }
+
+            // Ticks missed while the thread was not scheduled are caught up one at a time
+            advance();
+            next += tickNanos;
+        }
+    }
+
+    private void advance() {
+        long t = tick + 1;
+        tick = t;
+
+        ClientHandler handler;
+        while ((handler = pending.poll()) != null) {
+            schedule(handler, Math.max(handler.lastActivity + idleTicks, t + 1));
+        }
+
+        int index = (int) (t & mask);
+        ArrayList<ClientHandler> slot = wheel.set(index, spare);
+
+        for (ClientHandler h : slot) {
+            if (h.idleDeadline > t) schedule(h, h.idleDeadline);
+            else {
+                try {
+                    expire(h, t);
+                } catch (Exception e) {
+                    Server.log("\033[91;3mIdle timer error: " + e.getClass().getName() + ": " + e.getMessage() + "\033[0m");
+                }
+            }
+        }
+
+        slot.clear();
+        spare = slot;
+    }
+
+    private void schedule(ClientHandler handler, long deadline) {
+        handler.idleDeadline = deadline;
+        wheel.get((int) (deadline & mask)).add(handler);
+    }
+
+    /**
+     * Look at a connection which has reached its deadline
+     */
+    private void expire(ClientHandler handler, long t) {
+        // Closed connections are dropped from the wheel here
+        if (registry.get(handler.threadId()) != handler) return;
+
+        long last = handler.lastActivity;
+        if (t - last < idleTicks) {
+            schedule(handler, last + idleTicks);
+            return;
+        }
+
+        if (handler.probeOutstanding && last <= handler.probeSentAt) {
+            idleCloses.incrementAndGet();
+            handler.log("Closing unresponsive connection.");
+            closeExecutor.execute(handler::close);
+            return;
+        }
+
+        handler.probeSentAt = t;
+        handler.probeOutstanding = true;
+        probesSent.incrementAndGet();
+        handler.probe();
+        schedule(handler, t + probeTicks);
+    }
+}
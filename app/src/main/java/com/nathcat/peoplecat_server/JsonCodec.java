@@ -0,0 +1,35 @@
+package com.nathcat.peoplecat_server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes payloads as UTF-8 JSON text, the original payload format.
+ */
+public class JsonCodec implements PayloadCodec {
+    private static final byte[] EMPTY = new byte[0];
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(JSONObject data) {
+        return data == null ? EMPTY : JsonWriter.toBytes(data);
+    }
+
+    @Override
+    public JSONObject decode(byte[] bytes, int offset, int length) throws IOException {
+        try {
+            return (JSONObject) new JSONParser().parse(new String(bytes, offset, length, StandardCharsets.UTF_8));
+
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Invalid JSON payload: " + new String(bytes, offset, length, StandardCharsets.UTF_8), e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.nathcat.peoplecat_server;
+
+import org.json.simple.JSONAware;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>Serializes JSON values straight to UTF-8 bytes.</p>
+ * <p>
+ *     <code>JSONObject.toJSONString()</code> builds the whole document in a <code>StringBuffer</code>, allocating a
+ *     new string for every nested value, and the result then has to be encoded to UTF-8 separately. This writer
+ *     produces the same JSON in a single pass into a per-thread buffer which is reused between calls, so the only
+ *     allocation is the final byte array.
+ * </p>
+ * <p>
+ *     Maps, collections, arrays of objects, strings, numbers, booleans and null are written directly. Any other
+ *     <code>JSONAware</code> value is written using its own <code>toJSONString()</code>, and anything else is
+ *     written as a string of its <code>toString()</code>.
+ * </p>
+ */
+public final class JsonWriter {
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+
+    private byte[] buffer = new byte[4096];
+    private int size = 0;
+
+    private JsonWriter() {}
+
+    /**
+     * Serialize a JSON value to UTF-8 bytes
+     * @param value The value to serialize
+     * @return The UTF-8 encoded JSON
+     */
+    public static byte[] toBytes(Object value) {
+        JsonWriter w = WRITERS.get();
+        w.size = 0;
+        w.writeValue(value);
+        byte[] result = Arrays.copyOf(w.buffer, w.size);
+
+        // Don't let one huge document pin a huge buffer to this thread forever
+        if (w.buffer.length > MAX_RETAINED_CAPACITY) w.buffer = new byte[4096];
+        return result;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeValue(Object value) {
+        if (value == null) writeAscii("null");
+        else if (value instanceof String s) writeString(s);
+        else if (value instanceof Boolean || value instanceof Number) writeAscii(value.toString());
+        else if (value instanceof Map<?, ?> map) writeMap(map);
+        else if (value instanceof Collection<?> collection) writeCollection(collection);
+        else if (value instanceof Object[] array) writeCollection(Arrays.asList(array));
+        else if (value instanceof JSONAware aware) writeRaw(aware.toJSONString());
+        else writeString(value.toString());
+    }
+
+    private void writeMap(Map<?, ?> map) {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (!first) writeByte(',');
+            first = false;
+
+            writeString(String.valueOf(e.getKey()));
+            writeByte(':');
+            writeValue(e.getValue());
+        }
+
+        writeByte('}');
+    }
+
+    private void writeCollection(Collection<?> collection) {
+        writeByte('[');
+        boolean first = true;
+        for (Object o : collection) {
+            if (!first) writeByte(',');
+            first = false;
+
+            writeValue(o);
+        }
+
+        writeByte(']');
+    }
+
+    private void writeRaw(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Write a quoted string, escaping it in the same way as <code>JSONValue.escape</code> and encoding it as UTF-8
+     */
+    private void writeString(String s) {
+        // Worst case is a six byte escape for every character
+        ensure(s.length() * 6 + 2);
+        buffer[size++] = '"';
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> { buffer[size++] = '\\'; buffer[size++] = '"'; }
+                case '\\' -> { buffer[size++] = '\\'; buffer[size++] = '\\'; }
+                case '/' -> { buffer[size++] = '\\'; buffer[size++] = '/'; }
+                case '\b' -> { buffer[size++] = '\\'; buffer[size++] = 'b'; }
+                case '\f' -> { buffer[size++] = '\\'; buffer[size++] = 'f'; }
+                case '\n' -> { buffer[size++] = '\\'; buffer[size++] = 'n'; }
+                case '\r' -> { buffer[size++] = '\\'; buffer[size++] = 'r'; }
+                case '\t' -> { buffer[size++] = '\\'; buffer[size++] = 't'; }
+                default -> {
+                    if (c <= 0x1F || (c >= 0x7F && c <= 0x9F) || (c >= 0x2000 && c <= 0x20FF)) {
+                        buffer[size++] = '\\';
+                        buffer[size++] = 'u';
+                        buffer[size++] = HEX[(c >> 12) & 0xF];
+                        buffer[size++] = HEX[(c >> 8) & 0xF];
+                        buffer[size++] = HEX[(c >> 4) & 0xF];
+                        buffer[size++] = HEX[c & 0xF];
+                    }
+                    else if (c < 0x80) {
+                        buffer[size++] = (byte) c;
+                    }
+                    else if (c < 0x800) {
+                        buffer[size++] = (byte) (0xC0 | (c >> 6));
+                        buffer[size++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                    else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        buffer[size++] = (byte) (0xF0 | (cp >> 18));
+                        buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+                    }
+                    else if (Character.isSurrogate(c)) {
+                        // Unpaired surrogate, encode the replacement character as String.getBytes would
+                        buffer[size++] = '?';
+                    }
+                    else {
+                        buffer[size++] = (byte) (0xE0 | (c >> 12));
+                        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        buffer[size++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                }
+            }
+        }
+
+        buffer[size++] = '"';
+    }
+}
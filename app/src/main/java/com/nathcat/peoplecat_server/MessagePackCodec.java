@@ -0,0 +1,255 @@
+package com.nathcat.peoplecat_server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>Encodes payloads using the <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">MessagePack</a>
+ * format.</p>
+ * <p>
+ *     Only the types which can appear in a JSON payload are supported: maps, arrays, strings, integers, floats,
+ *     booleans and nil. Integers are always decoded as <code>Long</code> and floats as <code>Double</code>, matching
+ *     what <code>JSONParser</code> produces, so handlers see exactly the same objects whichever codec the client uses.
+ *     Map keys must be strings.
+ * </p>
+ */
+public class MessagePackCodec implements PayloadCodec {
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+    @Override
+    public String name() {
+        return "msgpack";
+    }
+
+    @Override
+    public byte[] encode(JSONObject data) {
+        if (data == null) return EMPTY;
+
+        Encoder e = ENCODERS.get();
+        e.size = 0;
+        e.writeValue(data);
+        byte[] result = Arrays.copyOf(e.buffer, e.size);
+
+        if (e.buffer.length > MAX_RETAINED_CAPACITY) e.buffer = new byte[4096];
+        return result;
+    }
+
+    @Override
+    public JSONObject decode(byte[] bytes, int offset, int length) throws IOException {
+        Decoder d = new Decoder(bytes, offset, offset + length);
+        Object value = d.readValue();
+        if (!(value instanceof JSONObject o)) {
+            throw new IOException("MessagePack payload must be a map");
+        }
+
+        if (d.position != d.end) {
+            throw new IOException("Trailing bytes after MessagePack payload");
+        }
+
+        return o;
+    }
+
+    private static final class Encoder {
+        byte[] buffer = new byte[4096];
+        int size = 0;
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        private void writeBE(long value, int bytes) {
+            ensure(bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                buffer[size++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        /**
+         * Write a type byte followed by a length, choosing the smallest of the given formats
+         */
+        private void writeHeader(int length, int fixBase, int fixMax, int format8, int format16, int format32) {
+            if (length <= fixMax) {
+                writeByte(fixBase | length);
+            }
+            else if (format8 != -1 && length <= 0xFF) {
+                writeByte(format8);
+                writeBE(length, 1);
+            }
+            else if (length <= 0xFFFF) {
+                writeByte(format16);
+                writeBE(length, 2);
+            }
+            else {
+                writeByte(format32);
+                writeBE(length, 4);
+            }
+        }
+
+        void writeValue(Object value) {
+            if (value == null) writeByte(0xC0);
+            else if (value instanceof Boolean b) writeByte(b ? 0xC3 : 0xC2);
+            else if (value instanceof Double || value instanceof Float) {
+                writeByte(0xCB);
+                writeBE(Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+            }
+            else if (value instanceof Number n) writeLong(n.longValue());
+            else if (value instanceof String s) writeString(s);
+            else if (value instanceof Map<?, ?> map) {
+                writeHeader(map.size(), 0x80, 15, -1, 0xDE, 0xDF);
+                for (Map.Entry<?, ?> e : map.entrySet()) {
+                    writeString(String.valueOf(e.getKey()));
+                    writeValue(e.getValue());
+                }
+            }
+            else if (value instanceof Collection<?> collection) {
+                writeHeader(collection.size(), 0x90, 15, -1, 0xDC, 0xDD);
+                for (Object o : collection) writeValue(o);
+            }
+            else if (value instanceof Object[] array) writeValue(Arrays.asList(array));
+            else writeString(value.toString());
+        }
+
+        private void writeLong(long v) {
+            if (v >= -32 && v <= 127) writeByte((int) v);
+            else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) { writeByte(0xD0); writeBE(v, 1); }
+            else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) { writeByte(0xD1); writeBE(v, 2); }
+            else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) { writeByte(0xD2); writeBE(v, 4); }
+            else { writeByte(0xD3); writeBE(v, 8); }
+        }
+
+        private void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeHeader(bytes.length, 0xA0, 31, 0xD9, 0xDA, 0xDB);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+    }
+
+    private static final class Decoder {
+        private static final int MAX_DEPTH = 64;
+
+        final byte[] bytes;
+        int position;
+        final int end;
+        int depth = 0;
+
+        Decoder(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        private void enter() throws IOException {
+            if (++depth > MAX_DEPTH) throw new IOException("MessagePack payload is nested too deeply");
+        }
+
+        private void require(long count) throws IOException {
+            if (count < 0 || count > end - position) throw new IOException("Truncated MessagePack payload");
+        }
+
+        private long readBE(int count) throws IOException {
+            require(count);
+            long v = 0;
+            for (int i = 0; i < count; i++) {
+                v = (v << 8) | (bytes[position++] & 0xFF);
+            }
+
+            return v;
+        }
+
+        private long readSigned(int count) throws IOException {
+            long v = readBE(count);
+            int shift = 64 - count * 8;
+            return (v << shift) >> shift;
+        }
+
+        Object readValue() throws IOException {
+            require(1);
+            int b = bytes[position++] & 0xFF;
+
+            if (b <= 0x7F) return (long) b;
+            if (b >= 0xE0) return (long) (byte) b;
+            if ((b & 0xF0) == 0x80) return readMap(b & 0x0F);
+            if ((b & 0xF0) == 0x90) return readArray(b & 0x0F);
+            if ((b & 0xE0) == 0xA0) return readString(b & 0x1F);
+
+            return switch (b) {
+                case 0xC0 -> null;
+                case 0xC2 -> false;
+                case 0xC3 -> true;
+                case 0xCA -> (double) Float.intBitsToFloat((int) readBE(4));
+                case 0xCB -> Double.longBitsToDouble(readBE(8));
+                case 0xCC -> readBE(1);
+                case 0xCD -> readBE(2);
+                case 0xCE -> readBE(4);
+                case 0xCF -> readBE(8);
+                case 0xD0 -> readSigned(1);
+                case 0xD1 -> readSigned(2);
+                case 0xD2 -> readSigned(4);
+                case 0xD3 -> readBE(8);
+                case 0xD9 -> readString(readBE(1));
+                case 0xDA -> readString(readBE(2));
+                case 0xDB -> readString(readBE(4));
+                case 0xDC -> readArray(readBE(2));
+                case 0xDD -> readArray(readBE(4));
+                case 0xDE -> readMap(readBE(2));
+                case 0xDF -> readMap(readBE(4));
+                default -> throw new IOException("Unsupported MessagePack type 0x" + Integer.toHexString(b));
+            };
+        }
+
+        private String readString(long length) throws IOException {
+            require(length);
+            String s = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return s;
+        }
+
+        @SuppressWarnings("unchecked")
+        private JSONArray readArray(long count) throws IOException {
+            // Every element takes at least one byte, so a count larger than the remaining bytes must be invalid
+            require(count);
+            enter();
+            JSONArray array = new JSONArray();
+            for (long i = 0; i < count; i++) {
+                array.add(readValue());
+            }
+
+            depth--;
+            return array;
+        }
+
+        @SuppressWarnings("unchecked")
+        private JSONObject readMap(long count) throws IOException {
+            require(count * 2);
+            enter();
+            JSONObject map = new JSONObject();
+            for (long i = 0; i < count; i++) {
+                if (!(readValue() instanceof String key)) {
+                    throw new IOException("MessagePack map keys must be strings");
+                }
+
+                map.put(key, readValue());
+            }
+
+            depth--;
+            return map;
+        }
+    }
+}
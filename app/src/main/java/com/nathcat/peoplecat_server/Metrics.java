@@ -0,0 +1,230 @@
+package com.nathcat.peoplecat_server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Counts the requests the server handles and the bytes it sends and receives, for each packet type.</p>
+ * <p>
+ *     Each packet type gets a latency histogram covering the time spent in <code>IPacketHandler.handle</code>, counters
+ *     of requests and of requests which failed or were answered with an error packet, and counters of the packets and
+ *     bytes received and sent. A type's metrics are created the first time a packet of that type is seen, and types
+ *     outside the range the server knows about are counted together as <code>OTHER</code>.
+ * </p>
+ * <p>
+ *     Every metric counts from the moment the server started, so rates are found by comparing two readings. The
+ *     metrics can be read as text in the Prometheus exposition format, or as JSON through
+ *     <code>Packet.TYPE_GET_METRICS</code>.
+ * </p>
+ */
+public class Metrics {
+    private static final int OTHER = 64;
+    private static final String[] NAMES = new String[OTHER + 1];
+
+    static {
+        // Name each type after its constant in Packet, so the metrics follow the protocol as it grows
+        for (Field f : Packet.class.getFields()) {
+            if (f.getName().startsWith("TYPE_") && f.getType() == int.class && Modifier.isStatic(f.getModifiers())) {
+                try {
+                    int type = f.getInt(null);
+                    if (type >= 0 && type < OTHER) NAMES[type] = f.getName().substring(5);
+                } catch (IllegalAccessException ignored) {}
+            }
+        }
+
+        for (int i = 0; i < OTHER; i++) {
+            if (NAMES[i] == null) NAMES[i] = String.valueOf(i);
+        }
+        NAMES[OTHER] = "OTHER";
+    }
+
+    /**
+     * The metrics of a single packet type
+     */
+    public static class TypeMetrics {
+        public final String name;
+        public final Histogram latency = new Histogram();
+        public final LongAdder requests = new LongAdder();
+        public final LongAdder errors = new LongAdder();
+        public final LongAdder packetsIn = new LongAdder();
+        public final LongAdder bytesIn = new LongAdder();
+        public final LongAdder packetsOut = new LongAdder();
+        public final LongAdder bytesOut = new LongAdder();
+
+        TypeMetrics(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param type A packet type
+     * @return The name of the type's constant in <code>Packet</code>, without the <code>TYPE_</code> prefix
+     */
+    public static String nameOf(int type) {
+        return NAMES[type >= 0 && type < OTHER ? type : OTHER];
+    }
+
+    private final Server server;
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicReferenceArray<TypeMetrics> types = new AtomicReferenceArray<>(OTHER + 1);
+
+    /**
+     * @param server The server whose connections are reported alongside the packet metrics, may be null
+     */
+    public Metrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Get the metrics of a packet type, creating them if this is the first packet of the type
+     * @param type The packet type
+     * @return The type's metrics
+     */
+    public TypeMetrics of(int type) {
+        int i = type >= 0 && type < OTHER ? type : OTHER;
+
+        TypeMetrics m = types.get(i);
+        if (m != null) return m;
+
+        types.compareAndSet(i, null, new TypeMetrics(NAMES[i]));
+        return types.get(i);
+    }
+
+    /**
+     * Record a handled request
+     * @param type The type of the request sequence
+     * @param nanos How long the request took to handle
+     * @param error True if handling failed or the response was an error packet
+     */
+    public void recordRequest(int type, long nanos, boolean error) {
+        TypeMetrics m = of(type);
+        m.latency.record(nanos);
+        m.requests.increment();
+        if (error) m.errors.increment();
+    }
+
+    /**
+     * Record a packet received from a client
+     * @param type The packet's type
+     * @param bytes The packet's size, including its header
+     */
+    public void recordIn(int type, long bytes) {
+        TypeMetrics m = of(type);
+        m.packetsIn.increment();
+        m.bytesIn.add(bytes);
+    }
+
+    /**
+     * Record a packet queued to be sent to a client
+     * @param type The packet's type
+     * @param bytes The packet's encoded size
+     */
+    public void recordOut(int type, long bytes) {
+        TypeMetrics m = of(type);
+        m.packetsOut.increment();
+        m.bytesOut.add(bytes);
+    }
+
+    /**
+     * @return The metrics in the Prometheus text exposition format
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        sb.append("# TYPE peoplecat_uptime_seconds gauge\n");
+        sb.append("peoplecat_uptime_seconds ").append((System.currentTimeMillis() - startedAt) / 1000).append('\n');
+
+        if (server != null) {
+            sb.append("# TYPE peoplecat_connections gauge\n");
+            sb.append("peoplecat_connections ").append(server.connections.count()).append('\n');
+            sb.append("# TYPE peoplecat_authenticated_connections gauge\n");
+            sb.append("peoplecat_authenticated_connections ").append(server.connections.authenticatedCount()).append('\n');
+            sb.append("# TYPE peoplecat_outbound_queued_bytes gauge\n");
+            sb.append("peoplecat_outbound_queued_bytes ").append(server.connections.outboundQueuedBytes()).append('\n');
+        }
+
+        counter(sb, "peoplecat_requests_total", m -> m.requests.sum());
+        counter(sb, "peoplecat_request_errors_total", m -> m.errors.sum());
+        counter(sb, "peoplecat_packets_in_total", m -> m.packetsIn.sum());
+        counter(sb, "peoplecat_bytes_in_total", m -> m.bytesIn.sum());
+        counter(sb, "peoplecat_packets_out_total", m -> m.packetsOut.sum());
+        counter(sb, "peoplecat_bytes_out_total", m -> m.bytesOut.sum());
+
+        sb.append("# TYPE peoplecat_request_seconds summary\n");
+        for (int i = 0; i <= OTHER; i++) {
+            TypeMetrics m = types.get(i);
+            if (m == null || m.latency.count() == 0) continue;
+
+            for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                sb.append("peoplecat_request_seconds{type=\"").append(m.name).append("\",quantile=\"").append(q).append("\"} ")
+                        .append(seconds(m.latency.percentile(q))).append('\n');
+            }
+            sb.append("peoplecat_request_seconds_sum{type=\"").append(m.name).append("\"} ").append(seconds(m.latency.sum())).append('\n');
+            sb.append("peoplecat_request_seconds_count{type=\"").append(m.name).append("\"} ").append(m.latency.count()).append('\n');
+            sb.append("peoplecat_request_seconds_max{type=\"").append(m.name).append("\"} ").append(seconds(m.latency.max())).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private void counter(StringBuilder sb, String name, java.util.function.ToLongFunction<TypeMetrics> value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (int i = 0; i <= OTHER; i++) {
+            TypeMetrics m = types.get(i);
+            if (m == null) continue;
+
+            sb.append(name).append("{type=\"").append(m.name).append("\"} ").append(value.applyAsLong(m)).append('\n');
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    /**
+     * @return The metrics as JSON, with latencies in microseconds
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("uptime", System.currentTimeMillis() - startedAt);
+        if (server != null) {
+            json.put("connections", server.connections.count());
+            json.put("authenticatedConnections", server.connections.authenticatedCount());
+            json.put("outboundQueuedBytes", server.connections.outboundQueuedBytes());
+        }
+
+        JSONArray array = new JSONArray();
+        for (int i = 0; i <= OTHER; i++) {
+            TypeMetrics m = types.get(i);
+            if (m == null) continue;
+
+            JSONObject type = new JSONObject();
+            type.put("type", m.name);
+            type.put("requests", m.requests.sum());
+            type.put("errors", m.errors.sum());
+            type.put("packetsIn", m.packetsIn.sum());
+            type.put("bytesIn", m.bytesIn.sum());
+            type.put("packetsOut", m.packetsOut.sum());
+            type.put("bytesOut", m.bytesOut.sum());
+
+            JSONObject latency = new JSONObject();
+            latency.put("mean", Math.round(m.latency.mean() / 1000));
+            latency.put("p50", m.latency.percentile(0.5) / 1000);
+            latency.put("p90", m.latency.percentile(0.9) / 1000);
+            latency.put("p99", m.latency.percentile(0.99) / 1000);
+            latency.put("max", m.latency.max() / 1000);
+            type.put("latency", latency);
+
+            array.add(type);
+        }
+
+        json.put("types", array);
+        return json;
+    }
+}
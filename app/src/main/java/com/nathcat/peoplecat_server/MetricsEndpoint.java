@@ -0,0 +1,83 @@
+package com.nathcat.peoplecat_server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Serves the server's metrics as plain text over HTTP, so they can be scraped by Prometheus or read with curl.</p>
+ * <p>
+ *     <code>GET /metrics</code> returns the metrics in the Prometheus text exposition format. The endpoint has no
+ *     authentication of its own, so by default it only listens on the loopback interface.
+ * </p>
+ */
+public class MetricsEndpoint {
+    private final Metrics metrics;
+    private final InetSocketAddress address;
+    private HttpServer http;
+    private ExecutorService executor;
+
+    /**
+     * @param metrics The metrics to serve
+     * @param address The address to listen on
+     */
+    public MetricsEndpoint(Metrics metrics, InetSocketAddress address) {
+        this.metrics = metrics;
+        this.address = address;
+    }
+
+    /**
+     * Start listening
+     * @throws IOException Thrown if the address cannot be bound
+     */
+    public void start() throws IOException {
+        http = HttpServer.create(address, 16);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "MetricsEndpoint");
+            t.setDaemon(true);
+            return t;
+        });
+
+        http.setExecutor(executor);
+        http.createContext("/metrics", this::handle);
+        http.start();
+
+        Server.log("Serving metrics on http://" + address.getHostString() + ":" + address.getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Stop listening
+     */
+    public void stop() {
+        if (http != null) http.stop(0);
+        if (executor != null) executor.shutdown();
+    }
+}
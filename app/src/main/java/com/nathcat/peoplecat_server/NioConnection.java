@@ -0,0 +1,217 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State of a single raw TCP connection owned by one of the <code>NioServer</code> event loops. Inbound bytes are
+ * accumulated here until complete packets can be decoded, and outbound bytes are queued here until the channel
+ * is ready to accept them.
+ * @see NioServer
+ */
+public class NioConnection {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Maximum number of buffers passed to a single gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
+    public final SocketChannel channel;
+    public final NioServer.EventLoop loop;
+    private final BufferPool bufferPool;
+    private final PayloadPool payloadPool;
+    public SelectionKey key;
+    public ClientHandler handler;
+    /**
+     * Held from the moment the connection was admitted until it is closed
+     */
+    public AdmissionController.Lease lease;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final ArrayList<Packet> sequence = new ArrayList<>();
+    private long sequenceBytes = 0;
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private long pendingBytes = 0;
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    public NioConnection(SocketChannel channel, NioServer.EventLoop loop, BufferPool bufferPool, PayloadPool payloadPool) {
+        this.channel = channel;
+        this.loop = loop;
+        this.bufferPool = bufferPool;
+        this.payloadPool = payloadPool;
+    }
+
+    /**
+     * Read whatever is available from the channel and decode any complete packets. Must only be called from the
+     * owning event loop.
+     * @return The complete packet sequences which were decoded, in the order they were received. Will be empty if
+     *         no sequence has been completed yet.
+     * @throws IOException Thrown if the channel has reached end of stream, the read fails, or the peer sends a packet
+     *                     sequence larger than the payload pool accepts
+     */
+    public ArrayList<Packet[]> read() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            throw new IOException("Connection closed by peer");
+        }
+
+        ArrayList<Packet[]> sequences = new ArrayList<>();
+        readBuffer.flip();
+
+        Packet p;
+        while ((p = Packet.readFrom(readBuffer, payloadPool)) != null) {
+            sequence.add(p);
+            sequenceBytes += Packet.HEADER_SIZE + p.length;
+            if (p.isFinal) {
+                sequences.add(sequence.toArray(new Packet[0]));
+                sequence.clear();
+                sequenceBytes = 0;
+            }
+            else {
+                try {
+                    payloadPool.checkSequenceSize(sequenceBytes);
+                } catch (IOException e) {
+                    for (Packet partial : sequence) partial.release();
+                    sequence.clear();
+                    throw e;
+                }
+            }
+        }
+
+        // Make sure the buffer can hold the whole of a partially received packet before we try to read the rest of it,
+        // its length has already been checked against the payload pool. Once an oversized packet has been consumed
+        // the buffer goes back to its initial size, so a connection does not keep its largest packet's worth of memory
+        // for the rest of its life.
+        int needed = readBuffer.remaining();
+        if (needed >= Packet.HEADER_SIZE) needed = Packet.HEADER_SIZE + readBuffer.getInt(readBuffer.position() + 5);
+
+        if (readBuffer.capacity() < needed || (readBuffer.capacity() > INITIAL_BUFFER_SIZE && needed <= INITIAL_BUFFER_SIZE)) {
+            ByteBuffer resized = ByteBuffer.allocate(Math.max(needed, INITIAL_BUFFER_SIZE));
+            resized.put(readBuffer);
+            resized.flip();
+            readBuffer = resized;
+        }
+
+        readBuffer.compact();
+        return sequences;
+    }
+
+    /**
+     * Queue bytes to be written to the channel. May be called from any thread.
+     * @param buffer The bytes to write
+     */
+    public void write(ByteBuffer buffer) {
+        write(new ByteBuffer[] { buffer });
+    }
+
+    /**
+     * Queue several buffers to be written to the channel together. May be called from any thread. The event loop is
+     * only woken once for any number of writes queued before it next flushes this connection. The connection takes
+     * ownership of the buffers, and releases pooled buffers back to the pool once they have been written.
+     * @param buffers The bytes to write
+     */
+    public void write(ByteBuffer[] buffers) {
+        if (closed) {
+            for (ByteBuffer buffer : buffers) bufferPool.release(buffer);
+            return;
+        }
+
+        synchronized (writeQueue) {
+            // Checked again under the lock, since close may have emptied the queue since the check above
+            if (closed) {
+                for (ByteBuffer buffer : buffers) bufferPool.release(buffer);
+                return;
+            }
+
+            for (ByteBuffer buffer : buffers) {
+                writeQueue.add(buffer);
+                pendingBytes += buffer.remaining();
+            }
+        }
+
+        if (writeRequested.compareAndSet(false, true)) loop.requestWrite(this);
+    }
+
+    /**
+     * Write as much of the queued data as the channel will currently accept, using gathering writes. Must only be
+     * called from the owning event loop.
+     * @return True if the write queue was fully drained, false if the channel could not accept all of it
+     * @throws IOException Thrown if the write fails
+     */
+    public boolean flushQueue() throws IOException {
+        writeRequested.set(false);
+
+        synchronized (writeQueue) {
+            ByteBuffer[] gather = new ByteBuffer[Math.min(writeQueue.size(), MAX_GATHER)];
+            while (!writeQueue.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : writeQueue) {
+                    if (count == gather.length) break;
+                    gather[count++] = buffer;
+                }
+
+                pendingBytes -= channel.write(gather, 0, count);
+                boolean partial = gather[count - 1].hasRemaining();
+
+                while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                    bufferPool.release(writeQueue.poll());
+                }
+
+                // The channel could not take everything we offered it, wait until it is writable again
+                if (partial) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of bytes queued on this connection which have not yet been written to the channel
+     */
+    public long pendingBytes() {
+        synchronized (writeQueue) {
+            return pendingBytes;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the underlying channel
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        if (lease != null) lease.release();
+
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+
+        synchronized (writeQueue) {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.poll()) != null) bufferPool.release(buffer);
+            pendingBytes = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return "NioConnection " + channel.getRemoteAddress();
+        } catch (IOException e) {
+            return "NioConnection (closed)";
+        }
+    }
+}
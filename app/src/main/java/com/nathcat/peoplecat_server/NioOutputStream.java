@@ -0,0 +1,46 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allows output of packets through a non-blocking <code>NioConnection</code>. Written bytes are queued on the
+ * connection and sent by its event loop.
+ */
+public class NioOutputStream extends OutputStream {
+    private final NioConnection connection;
+
+    public NioOutputStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        connection.write(ByteBuffer.wrap(new byte[] {(byte) b}));
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        connection.write(ByteBuffer.wrap(b));
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        connection.write(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+    }
+
+    /**
+     * Queue several encoded packets on the connection at once, so they are sent together in a single gathering write.
+     * The connection takes ownership of the buffers.
+     * @param batch The encoded packets to write
+     */
+    public void write(List<ByteBuffer> batch) {
+        connection.write(batch.toArray(new ByteBuffer[0]));
+    }
+
+    @Override
+    public void flush() { /* Do nothing, the event loop will send queued data as soon as the channel is writable */ }
+}
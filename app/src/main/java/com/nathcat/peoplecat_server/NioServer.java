@@ -0,0 +1,290 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking alternative to the thread-per-connection model used by <code>Server.start()</code>. A small, fixed
+ * pool of event loops each own a selector and handle every raw TCP connection assigned to them, decoding packet
+ * sequences and passing them to the connection's packet handler.
+ */
+public class NioServer {
+    /**
+     * A single selector thread, handling reads and writes for the connections registered to it.
+     */
+    public class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ServerSocketChannel> pendingListeners = new ConcurrentLinkedQueue<>();
+
+        public EventLoop(int id) throws IOException {
+            selector = Selector.open();
+            setName("EventLoop-" + id);
+            setDaemon(true);
+        }
+
+        /**
+         * Hand a newly accepted channel to this event loop.
+         * @param channel The accepted channel
+         * @param lease The connection's admission lease
+         */
+        public void register(SocketChannel channel, AdmissionController.Lease lease) {
+            pendingRegistrations.add(createConnection(channel, lease));
+            selector.wakeup();
+        }
+
+        private NioConnection createConnection(SocketChannel channel, AdmissionController.Lease lease) {
+            NioConnection connection = new NioConnection(channel, this, server.bufferPool, server.payloadPool);
+            connection.lease = lease;
+            return connection;
+        }
+
+        /**
+         * Hand a listening socket to this event loop, which will accept connections from it and keep them.
+         * @param listener The listener
+         */
+        public void listen(ServerSocketChannel listener) {
+            pendingListeners.add(listener);
+            selector.wakeup();
+        }
+
+        /**
+         * Ask this event loop to write the queued data of a connection. May be called from any thread.
+         * @param connection The connection with data waiting to be written
+         */
+        public void requestWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != this) selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    processRegistrations();
+                    processWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.attachment() instanceof ServerSocketChannel listener) {
+                            if (key.isValid() && key.isAcceptable()) accept(listener);
+                            continue;
+                        }
+
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            closeConnection(connection);
+                            continue;
+                        }
+
+                        if (key.isReadable()) handleRead(connection);
+                        if (key.isValid() && key.isWritable()) handleWrite(connection);
+                    }
+
+                    // Register anything accepted during this pass straight away rather than waiting for the next select
+                    processRegistrations();
+                } catch (Exception e) {
+                    Server.log("\033[91;3mEvent loop error: " + e.getClass().getName() + ": " + e.getMessage() + "\n" + Server.stringifyStackTrace(e.getStackTrace()) + "\033[0m");
+                }
+            }
+        }
+
+        /**
+         * Accept every connection waiting on a listener owned by this event loop
+         */
+        private void accept(ServerSocketChannel listener) {
+            try {
+                SocketChannel channel;
+                while ((channel = listener.accept()) != null) {
+                    AdmissionController.Lease lease = admit(channel);
+                    if (lease != null) pendingRegistrations.add(createConnection(channel, lease));
+                }
+            } catch (IOException e) {
+                Server.log("\033[91;3mFailed to accept connection: " + e.getMessage() + "\033[0m");
+            }
+        }
+
+        private void processRegistrations() {
+            ServerSocketChannel listener;
+            while ((listener = pendingListeners.poll()) != null) {
+                try {
+                    listener.configureBlocking(false);
+                    listener.register(selector, SelectionKey.OP_ACCEPT, listener);
+                } catch (IOException e) {
+                    Server.log("\033[91;3mFailed to register listener: " + e.getMessage() + "\033[0m");
+                }
+            }
+
+            NioConnection connection;
+            while ((connection = pendingRegistrations.poll()) != null) {
+                try {
+                    ClientHandler handler = new ClientHandler(server, connection, new NioOutputStream(connection));
+
+                    // Check if the server is allowed to accept any more connections
+                    if (!server.connections.register(handler, server.threadCount)) {
+                        connection.channel.write(ByteBuffer.wrap(Packet.createError("Server full", "The server cannot currently accept any more connections.").getBytes()));
+                        connection.close();
+                        continue;
+                    }
+
+                    // Set before anything else can fail, so that the catch below unregisters the handler
+                    connection.handler = handler;
+                    connection.channel.configureBlocking(false);
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    handler.active = true;
+                    if (server.handlerExecutor != null) handler.sequenceExecutor = new SerialExecutor(server.handlerExecutor);
+                } catch (IOException e) {
+                    Server.log("Failed to register connection: " + e.getMessage());
+                    connection.close();
+                    if (connection.handler != null) connection.handler.close();
+                }
+            }
+        }
+
+        private void processWrites() {
+            NioConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (!connection.isClosed()) handleWrite(connection);
+            }
+        }
+
+        private void handleRead(NioConnection connection) {
+            ArrayList<Packet[]> sequences;
+            try {
+                sequences = connection.read();
+            } catch (IOException e) {
+                closeConnection(connection);
+                return;
+            }
+
+            for (Packet[] sequence : sequences) {
+                handleSequence(connection, sequence);
+                if (connection.isClosed()) return;
+            }
+        }
+
+        private void handleWrite(NioConnection connection) {
+            try {
+                boolean drained = connection.flushQueue();
+                if (connection.key != null && connection.key.isValid()) {
+                    connection.key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                closeConnection(connection);
+            }
+        }
+
+        private void handleSequence(NioConnection connection, Packet[] sequence) {
+            Packet last = sequence[sequence.length - 1];
+
+            if (last.type == Packet.TYPE_CLOSE) {
+                closeConnection(connection);
+                return;
+            }
+
+            ClientHandler h = connection.handler;
+            h.dispatch(sequence);
+        }
+
+        private void closeConnection(NioConnection connection) {
+            if (connection == null) return;
+
+            connection.close();
+            if (connection.handler != null) connection.handler.close();
+        }
+    }
+
+    private final Server server;
+    private final EventLoop[] loops;
+
+    public NioServer(Server server) throws IOException {
+        this.server = server;
+        loops = new EventLoop[Math.max(1, server.eventLoopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and begins accepting connections
+     * @throws IOException thrown by failing I/O operations
+     */
+    public void start() throws IOException {
+        Server.log("""
+                ----- PeopleCat Server -----
+                Version\s""" + Server.version + """
+                \nDeveloped by Nathcat 2024
+                """);
+
+        Server.log("Starting up in non-blocking mode with " + loops.length + " event loops...");
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        ServerSocketChannel[] listeners = server.openListeners(server.acceptorCount);
+
+        Server.log("Ready.");
+
+        if (listeners.length > 1) {
+            // Each event loop accepts from its own listeners, so connections never move between threads
+            for (int i = 0; i < listeners.length; i++) {
+                loops[i % loops.length].listen(listeners[i]);
+            }
+
+            try {
+                for (EventLoop loop : loops) loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return;
+        }
+
+        ServerSocketChannel ss = listeners[0];
+        int next = 0;
+        while (true) {
+            SocketChannel client;
+            try {
+                client = ss.accept();
+            } catch (ClosedChannelException e) {
+                if (server.drain.isDraining()) return;
+                throw e;
+            }
+
+            AdmissionController.Lease lease = admit(client);
+            if (lease == null) continue;
+
+            loops[next].register(client, lease);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Ask the admission controller whether a newly accepted channel may proceed, closing it if not
+     * @return The connection's lease, or null if it was refused
+     */
+    private AdmissionController.Lease admit(SocketChannel channel) {
+        AdmissionController.Lease lease = server.admission.admit(channel.socket().getInetAddress());
+        if (lease == null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+
+        return lease;
+    }
+}
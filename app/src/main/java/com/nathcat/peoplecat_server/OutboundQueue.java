@@ -0,0 +1,335 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A bounded queue of encoded packets waiting to be written to a single connection.</p>
+ * <p>
+ *     Packets are encoded into buffers from the server's <code>BufferPool</code> as they are queued. The queue owns
+ *     these buffers until it hands them to the transport, which releases them once they have been written.
+ * </p>
+ * <p>
+ *     Packets are written by a writer task running on a shared executor, so the thread which queues a packet, for
+ *     example a thread fanning a message out to every member of a chat, never waits on a slow client. At most one
+ *     writer task runs for each queue at a time, so packets are written in the order they were queued. The writer
+ *     takes everything which has been queued since its last write and writes it as a single batch, so a long
+ *     response sequence, along with any notifications queued alongside it, costs one flush rather than one per packet.
+ * </p>
+ * <p>
+ *     Once the number of queued bytes rises above the high water mark, the connection is considered to be a slow
+ *     consumer until the queue drains below the low water mark. While a connection is a slow consumer, notifications
+ *     sent to it are dropped, and under the <code>DISCONNECT</code> policy the connection is closed if it remains a
+ *     slow consumer for longer than the grace period. Responses to the client's own requests are never dropped.
+ * </p>
+ */
+public class OutboundQueue {
+    /**
+     * What to do with a connection which stays over the high water mark
+     */
+    public enum Policy {
+        /**
+         * Drop notifications until the queue drains below the low water mark
+         */
+        DROP,
+        /**
+         * Drop notifications, and close the connection if it stays over the high water mark for longer than the
+         * grace period
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Settings and aggregate metrics shared by the outbound queues of every connection to a server
+     */
+    public static class Config {
+        public final long highWaterMark;
+        public final long lowWaterMark;
+        public final Policy policy;
+        public final long graceNanos;
+        public final Executor writerExecutor;
+        public final BufferPool bufferPool;
+        /**
+         * Records the packets and bytes queued for each packet type, null if they are not recorded
+         */
+        public Metrics metrics;
+        /**
+         * Total number of packets dropped from all queues
+         */
+        public final AtomicLong droppedPackets = new AtomicLong();
+        /**
+         * Total number of connections closed for being slow consumers
+         */
+        public final AtomicLong slowConsumerDisconnects = new AtomicLong();
+
+        public Config(long highWaterMark, long lowWaterMark, Policy policy, long graceMillis, Executor writerExecutor,
+                      BufferPool bufferPool) {
+            this.highWaterMark = highWaterMark;
+            this.lowWaterMark = Math.min(lowWaterMark, highWaterMark);
+            this.policy = policy;
+            this.graceNanos = graceMillis * 1_000_000L;
+            this.writerExecutor = writerExecutor;
+            this.bufferPool = bufferPool;
+        }
+    }
+
+    /**
+     * Maximum number of bytes the writer will take from the queue for a single batch
+     */
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final ConnectionHandler handler;
+    private final Config config;
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long droppedPackets = 0;
+    private boolean draining = false;
+    private boolean closed = false;
+    private boolean slowConsumer = false;
+    private long slowConsumerSince;
+    private PayloadCodec codec = PayloadCodec.JSON;
+
+    public OutboundQueue(ConnectionHandler handler, Config config) {
+        this.handler = handler;
+        this.config = config;
+    }
+
+    /**
+     * Queue a packet to be written to the connection.
+     * @param packet The packet
+     * @param droppable Whether this packet may be dropped if the connection is a slow consumer. Should be true for
+     *                  notifications and false for responses to the client's requests.
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean offer(Packet packet, boolean droppable) {
+        return enqueue(packet, null, null, droppable);
+    }
+
+    /**
+     * Queue an encoded packet to be written to the connection. If the packet is queued, the queue takes ownership of
+     * the buffer. The packet must have been encoded with this queue's current codec.
+     * @param bytes The encoded packet
+     * @param droppable Whether this packet may be dropped if the connection is a slow consumer
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean offer(ByteBuffer bytes, boolean droppable) {
+        return enqueue(null, bytes, null, droppable);
+    }
+
+    /**
+     * Queue a packet which is being sent to many connections at once. The queue is given a view of the broadcast's
+     * shared bytes for its current codec, which are never returned to the buffer pool.
+     * @param broadcast The broadcast
+     * @param droppable Whether this packet may be dropped if the connection is a slow consumer
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean offer(Broadcast broadcast, boolean droppable) {
+        return enqueue(null, null, broadcast, droppable);
+    }
+
+    /**
+     * Queue either a packet or a broadcast, which is encoded with the current codec once it is known it will not be
+     * dropped, or an already encoded packet.
+     */
+    private boolean enqueue(Packet packet, ByteBuffer bytes, Broadcast broadcast, boolean droppable) {
+        boolean startWriter = false;
+        long backlog = -1;
+
+        synchronized (this) {
+            if (closed) {
+                config.bufferPool.release(bytes);
+                return false;
+            }
+
+            updateSlowConsumer();
+
+            if (!(slowConsumer && droppable)) {
+                // Encode while holding the lock, so a codec switch can never overtake a packet being queued
+                if (broadcast != null) bytes = handler.encode(broadcast, codec);
+                else if (bytes == null) bytes = packet.encode(config.bufferPool, codec);
+
+                if (config.metrics != null) {
+                    Packet p = broadcast != null ? broadcast.packet : packet;
+                    // Packets which were queued already encoded carry their type in their header
+                    config.metrics.recordOut(p != null ? p.type : bytes.getInt(bytes.position()), bytes.remaining());
+                }
+
+                queue.add(bytes);
+                queuedBytes += bytes.remaining();
+
+                if (!draining) {
+                    draining = true;
+                    startWriter = true;
+                }
+            }
+            else {
+                droppedPackets++;
+                config.droppedPackets.incrementAndGet();
+                config.bufferPool.release(bytes);
+
+                if (config.policy != Policy.DISCONNECT || System.nanoTime() - slowConsumerSince <= config.graceNanos) {
+                    return false;
+                }
+
+                backlog = queuedBytes;
+                discard();
+            }
+        }
+
+        if (backlog != -1) {
+            config.slowConsumerDisconnects.incrementAndGet();
+            handler.log("\033[91;3mClosing slow consumer with " + backlog + " bytes queued\033[0m");
+            handler.close();
+            return false;
+        }
+
+        if (startWriter) config.writerExecutor.execute(this::drain);
+        return true;
+    }
+
+    /**
+     * Queue a complete response sequence to be written to the connection. The packets are queued together, so the
+     * writer will always pick them up in the same batch unless the batch size limit is reached. Responses are never
+     * dropped.
+     * @param packets The packets
+     * @param switchTo If not null, the codec to switch to once the packets have been queued. The packets themselves
+     *                 are encoded with the current codec, and every packet queued after them uses the new one.
+     */
+    public void offerAll(Packet[] packets, PayloadCodec switchTo) {
+        boolean startWriter = false;
+
+        synchronized (this) {
+            if (closed) return;
+
+            for (Packet packet : packets) {
+                ByteBuffer bytes = packet.encode(config.bufferPool, codec);
+                if (config.metrics != null) config.metrics.recordOut(packet.type, bytes.remaining());
+                queue.add(bytes);
+                queuedBytes += bytes.remaining();
+            }
+
+            if (switchTo != null) codec = switchTo;
+
+            updateSlowConsumer();
+
+            if (!draining) {
+                draining = true;
+                startWriter = true;
+            }
+        }
+
+        if (startWriter) config.writerExecutor.execute(this::drain);
+    }
+
+    /**
+     * Update the slow consumer state from the current number of pending bytes. Must hold the lock on this queue.
+     */
+    private void updateSlowConsumer() {
+        long pending = queuedBytes + handler.transportBacklog();
+
+        if (!slowConsumer && pending > config.highWaterMark) {
+            slowConsumer = true;
+            slowConsumerSince = System.nanoTime();
+        }
+        else if (slowConsumer && pending <= config.lowWaterMark) {
+            slowConsumer = false;
+        }
+    }
+
+    /**
+     * Write queued packets to the connection in batches until the queue is empty
+     */
+    private void drain() {
+        ArrayList<ByteBuffer> batch = new ArrayList<>();
+
+        while (true) {
+            long batchBytes = 0;
+            synchronized (this) {
+                while (!queue.isEmpty() && (batch.isEmpty() || batchBytes + queue.peek().remaining() <= MAX_BATCH_BYTES)) {
+                    ByteBuffer next = queue.poll();
+                    batch.add(next);
+                    batchBytes += next.remaining();
+                }
+
+                if (batch.isEmpty() || closed) {
+                    draining = false;
+                    return;
+                }
+            }
+
+            try {
+                handler.writeBatch(batch);
+            } catch (IOException | RuntimeException e) {
+                handler.log("Failed to write to connection: " + e.getMessage());
+                handler.close();
+                return;
+            }
+
+            batch.clear();
+
+            synchronized (this) {
+                if (closed) continue;
+
+                queuedBytes -= batchBytes;
+                updateSlowConsumer();
+            }
+        }
+    }
+
+    /**
+     * Discard any queued packets and refuse any more
+     */
+    public synchronized void close() {
+        discard();
+    }
+
+    /**
+     * Close the queue and release every queued buffer. Must hold the lock on this queue.
+     */
+    private void discard() {
+        closed = true;
+
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) config.bufferPool.release(buffer);
+        queuedBytes = 0;
+    }
+
+    /**
+     * @return The number of packets waiting to be written
+     */
+    public synchronized int depth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of bytes waiting to be written
+     */
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return The number of packets which have been dropped from this queue
+     */
+    public synchronized long droppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * @return The codec packets queued now will be encoded with
+     */
+    public synchronized PayloadCodec codec() {
+        return codec;
+    }
+
+    /**
+     * @return Whether the connection is currently considered a slow consumer
+     */
+    public synchronized boolean isSlowConsumer() {
+        return slowConsumer;
+    }
+}
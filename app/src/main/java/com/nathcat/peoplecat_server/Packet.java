@@ -1,10 +1,12 @@
 package com.nathcat.peoplecat_server;
 
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -21,6 +23,17 @@ import java.nio.charset.StandardCharsets;
  *     <tr><td>4</td><td>Integer</td><td>Payload length (in bytes)</td></tr>
  *     <tr><td>Defined by payload length</td><td>String</td><td>JSON string containing the request body</td></tr>
  * </table>
+ *
+ * <h3>Request IDs</h3>
+ * <p>
+ *     From server version 5.4.0, the first packet of a request sequence may contain a <code>"requestId"</code>
+ *     field, either a string or an integer chosen by the client. Requests with an ID may be handled concurrently with
+ *     the connection's other requests, so their responses can arrive in any order, and every packet in the response,
+ *     including any error packet, carries the same <code>"requestId"</code>. Requests without an ID are handled one
+ *     at a time, in the order they were sent, exactly as in earlier versions. A client should not send other
+ *     requests while a request which changes the state of the connection, such as authentication or a codec switch,
+ *     is in flight.
+ * </p>
  */
 public class Packet {
     /**
@@ -79,6 +92,11 @@ public class Packet {
      *     However, from server version 4.1.1, the authentication flow is such that if <code>cookie-auth</code> is specified,
      *     the server will try cookie authentication, and upon failure will try credential authentication.
      * </p>
+     * <p>
+     *     From server version 5.3.0, either payload may also contain a <code>"codec": String</code> field, naming the
+     *     payload codec to use for the rest of the connection, see <code>TYPE_GET_SERVER_INFO</code>. The switch only
+     *     happens if authentication succeeds, in which case the response contains the same <code>codec</code> field.
+     * </p>
      * <h3>Response Format</h3>
      * <p>
      *     Note that the key pair field will be null if the user has no initialised key pair.
@@ -516,14 +534,26 @@ public class Packet {
      * </p>
      *
      * <h3>Payload format</h3>
-     * <p>No payload required</p>
+     * <p>No payload required, but from 5.3.0 a client may request a payload codec</p>
+     * <pre>
+     *     {
+     *         "codec": String   // Optional, one of the names listed in "codecs"
+     *     }
+     * </pre>
+     * <p>
+     *     All payloads are JSON until a codec is requested. The response to the request is still encoded with the old
+     *     codec, and every packet after it, in either direction, must use the new one. <code>"msgpack"</code> selects
+     *     <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">MessagePack</a>.
+     * </p>
      *
      * <h3>Response format</h3>
      * <pre>
      *     {
      *         "version": String,
      *         "serverTime": String,            // Pre 4.2.0 this is named server-time
-     *         "pushServicePublicKey": String   // Present from 5.0.0
+     *         "pushServicePublicKey": String,  // Present from 5.0.0
+     *         "codecs": [String],              // Present from 5.3.0
+     *         "codec": String                  // Present from 5.3.0, the codec in use after this response
      *     }
      * </pre>
      */
@@ -757,6 +787,77 @@ public class Packet {
      */
     public static final int TYPE_PUSH_UNSUBSCRIBE = 23;
 
+    /**
+     * <p>Since version 5.5.0</p>
+     * <h3>Purpose</h3>
+     * <p>
+     *     Sent by the server when it is about to shut down, for example during a deploy. The client should stop sending
+     *     new requests, wait for any responses it is still expecting, then close the connection and reconnect once
+     *     <code>retryAfter</code> milliseconds have passed. Each client is given a different, random delay, so that
+     *     clients do not all reconnect at the same moment. Requests sent after this packet may be answered with another
+     *     packet of this type rather than being handled.
+     * </p>
+     * <h3>Payload format</h3>
+     * <pre>
+     *     {
+     *         "retryAfter": Long,  // Milliseconds to wait before reconnecting
+     *         "closingIn": Long,   // Milliseconds until the server will close the connection itself
+     *         "reason": String
+     *     }
+     * </pre>
+     * <h3>Response format</h3>
+     * <p>
+     *     Should not respond to this packet. The server cannot receive packets of this type.
+     * </p>
+     */
+    public static final int TYPE_RECONNECT_LATER = 24;
+    /**
+     * <p>Since version 5.6.0</p>
+     * <h3>Purpose</h3>
+     * <p>
+     *     Get the server's request metrics. For each packet type the server has seen, this gives the number of
+     *     requests handled and how many of them failed, the packets and bytes received and sent, and how long requests
+     *     took to handle. Every figure counts from when the server started. Only users listed as administrators when
+     *     the server was started may make this request.
+     * </p>
+     * <h3>Payload format</h3>
+     * <p>No payload required</p>
+     * <h3>Response format</h3>
+     * <pre>
+     *     {
+     *         "uptime": Long,                    // Milliseconds since the server started
+     *         "connections": Integer,
+     *         "authenticatedConnections": Integer,
+     *         "outboundQueuedBytes": Long,
+     *         "types": [
+     *             {
+     *                 "type": String,            // The packet type's name, such as "SEND_MESSAGE"
+     *                 "requests": Long,
+     *                 "errors": Long,
+     *                 "packetsIn": Long,
+     *                 "bytesIn": Long,
+     *                 "packetsOut": Long,
+     *                 "bytesOut": Long,
+     *                 "latency": {               // Microseconds
+     *                     "mean": Long,
+     *                     "p50": Long,
+     *                     "p90": Long,
+     *                     "p99": Long,
+     *                     "max": Long
+     *                 }
+     *             }
+     *         ]
+     *     }
+     * </pre>
+     * <p>If the user is not an administrator, the server responds with an error packet named "Not an administrator".</p>
+     */
+    public static final int TYPE_GET_METRICS = 25;
+
+    /**
+     * Size of the packet header, 4 byte type, 1 byte final flag, 4 byte payload length
+     */
+    public static final int HEADER_SIZE = 9;
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
 
     /**
      * The type of request specified by the packet
@@ -767,44 +868,339 @@ public class Packet {
      */
     public boolean isFinal;
     /**
-     * The raw data in the payload, this is either a JSON object or an array of JSON objects.
+     * The raw data in the payload, this is either a JSON object or an array of JSON objects. Inbound payloads may be
+     * held in a pooled array which is longer than the payload, so only the first <code>length</code> bytes are valid.
+     * Packets created from a <code>JSONObject</code> only serialize their payload when it is first needed, until
+     * then this is null and <code>ensurePayload()</code> must be called before reading it.
+     */
+    public volatile byte[] payload;
+    /**
+     * The length of the payload in bytes
+     */
+    public int length;
+    /**
+     * The codec the payload is encoded with. Inbound packets are stamped with the codec their connection was using
+     * when they were handled, and outbound packets are encoded with whichever codec their recipient is using.
+     */
+    public PayloadCodec codec = PayloadCodec.JSON;
+    /**
+     * Set by a packet handler on the first packet of a request sequence to switch the connection to another codec
+     * once the response to the sequence has been written
+     */
+    public PayloadCodec switchCodec;
+    /**
+     * The parsed payload, cached after the first call to <code>getData()</code>
+     */
+    private volatile JSONObject data;
+    /**
+     * The payload encoded with a codec other than <code>codec</code>, cached for packets sent to several connections
+     */
+    private volatile Encoding alternate;
+
+    private record Encoding(PayloadCodec codec, byte[] bytes) {}
+    /**
+     * The pool the payload array was taken from, if any
      */
-    public byte[] payload;
+    private PayloadPool pool;
 
     public Packet() {}
 
+    public Packet(int type, boolean isFinal, byte[] payload) {
+        this.type = type;
+        this.isFinal = isFinal;
+        this.payload = payload;
+        this.length = payload.length;
+    }
+
+    /**
+     * Create a packet from an already built JSON object. The object is kept as the packet's data, so it is never
+     * parsed, and it is only serialized once the packet is first encoded. The object must not be modified after it has
+     * been passed to this method.
+     * @param type The type of the packet
+     * @param isFinal Whether this is the final packet in its sequence or not
+     * @param data The packet's data, may be null for an empty payload
+     * @return The resulting packet
+     */
+    public static Packet fromJSON(int type, boolean isFinal, JSONObject data) {
+        Packet p = new Packet();
+        p.type = type;
+        p.isFinal = isFinal;
+        p.data = data;
+        if (data == null) {
+            p.payload = EMPTY_PAYLOAD;
+            p.length = 0;
+        }
+
+        return p;
+    }
+
+    /**
+     * Make sure the payload has been serialized from the packet's data
+     */
+    public void ensurePayload() {
+        if (payload != null) return;
+
+        synchronized (this) {
+            if (payload != null) return;
+
+            byte[] bytes = codec.encode(data);
+            length = bytes.length;
+            payload = bytes;
+        }
+    }
+
+    /**
+     * Get the payload encoded with a codec other than this packet's own
+     */
+    private byte[] payloadFor(PayloadCodec c) {
+        Encoding e = alternate;
+        if (e != null && e.codec == c) return e.bytes;
+
+        // An empty payload has nothing to decode, and is empty in every codec
+        if (length == 0 && data == null) return c.encode(null);
+
+        byte[] bytes = c.encode(getData());
+        alternate = new Encoding(c, bytes);
+        return bytes;
+    }
+
     public Packet(InputStream inStream) throws IOException {
+        this(inStream, null);
+    }
+
+    /**
+     * Read a packet from a stream, holding its payload in an array taken from a pool
+     * @param inStream The stream to read from
+     * @param pool The pool to take the payload array from, may be null to allocate an array of exactly the right size
+     * @throws IOException Thrown if the read fails, or the payload length is refused by the pool
+     */
+    public Packet(InputStream inStream, PayloadPool pool) throws IOException {
         DataInputStream input = new DataInputStream(inStream);
         type = input.readInt();
         isFinal = input.readBoolean();
-        int length = input.readInt();
-        payload = new byte[length];
+        length = input.readInt();
+        if (pool != null) {
+            payload = pool.acquire(length);
+            this.pool = pool;
+        }
+        else {
+            payload = new byte[length];
+        }
 
-        try {
-            int res = inStream.read(payload);
+        input.readFully(payload, 0, length);
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Return this packet's payload array to the pool it was taken from. The packet's data must not be used after it
+     * has been released. Releasing a packet twice, or releasing a packet which was not read into a pooled array, has
+     * no effect.
+     */
+    public void release() {
+        if (pool == null) return;
+
+        byte[] array = payload;
+        PayloadPool p = pool;
+        pool = null;
+        payload = EMPTY_PAYLOAD;
+        length = 0;
+        p.release(array);
+    }
+
+    /**
+     * Release the payloads of every packet in a sequence
+     * @param sequence The packet sequence
+     */
+    public static void release(Packet[] sequence) {
+        for (Packet p : sequence) {
+            p.release();
+        }
+    }
+
+    /**
+     * Decode a packet from a buffer. The buffer's position is only advanced if a complete packet was available.
+     * @param buffer The buffer to read from
+     * @return The decoded packet, or null if the buffer does not yet contain the whole packet
+     * @throws IOException Thrown if the header contains an invalid payload length
+     */
+    public static Packet readFrom(ByteBuffer buffer) throws IOException {
+        return readFrom(buffer, null);
+    }
+
+    /**
+     * Decode a packet from a buffer, holding its payload in an array taken from a pool. The payload length is checked
+     * against the pool as soon as the header is available, so an oversized packet is refused before any of its
+     * payload has been received.
+     * @param buffer The buffer to read from
+     * @param pool The pool to take the payload array from, may be null to allocate an array of exactly the right size
+     * @return The decoded packet, or null if the buffer does not yet contain the whole packet
+     * @throws IOException Thrown if the header contains a payload length which is invalid or refused by the pool
+     */
+    public static Packet readFrom(ByteBuffer buffer, PayloadPool pool) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) return null;
+
+        int start = buffer.position();
+        int length = buffer.getInt(start + 5);
+        if (pool != null) {
+            pool.checkLength(length);
+        }
+        else if (length < 0) {
+            throw new IOException("Invalid payload length " + length);
+        }
+
+        if (buffer.remaining() < HEADER_SIZE + length) return null;
+
+        Packet p = new Packet();
+        p.type = buffer.getInt();
+        p.isFinal = buffer.get() != 0;
+        buffer.getInt();
+        p.length = length;
+        if (pool != null) {
+            p.payload = pool.acquire(length);
+            p.pool = pool;
+        }
+        else {
+            p.payload = new byte[length];
         }
+
+        buffer.get(p.payload, 0, length);
+        return p;
+    }
+
+    /**
+     * @return The number of bytes this packet occupies once encoded
+     */
+    public int encodedLength() {
+        return encodedLength(codec);
     }
 
     /**
-     * Transform the given data into a JSONObject
-     * @return The JSONObject contained within this packet's payload
+     * @param c The codec to encode the payload with
+     * @return The number of bytes this packet occupies once encoded with the given codec
+     */
+    public int encodedLength(PayloadCodec c) {
+        if (c != codec) return HEADER_SIZE + payloadFor(c).length;
+
+        ensurePayload();
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * Write the encoded packet into a buffer
+     * @param buffer The buffer to write to, must have at least <code>encodedLength()</code> bytes remaining
+     */
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, codec);
+    }
+
+    /**
+     * Write the encoded packet into a buffer, encoding the payload with the given codec
+     * @param buffer The buffer to write to, must have at least <code>encodedLength(c)</code> bytes remaining
+     * @param c The codec to encode the payload with
+     */
+    public void writeTo(ByteBuffer buffer, PayloadCodec c) {
+        byte[] bytes;
+        int len;
+        if (c == codec) {
+            ensurePayload();
+            bytes = payload;
+            len = length;
+        }
+        else {
+            bytes = payloadFor(c);
+            len = bytes.length;
+        }
+
+        buffer.putInt(type);
+        buffer.put((byte) (isFinal ? 1 : 0));
+        buffer.putInt(len);
+        buffer.put(bytes, 0, len);
+    }
+
+    /**
+     * Encode this packet into a buffer taken from a pool. The caller owns the buffer and must release it back to the
+     * pool once it has been written.
+     * @param pool The pool to take the buffer from
+     * @return A buffer containing the encoded packet, ready to be read
+     */
+    public ByteBuffer encode(BufferPool pool) {
+        return encode(pool, codec);
+    }
+
+    /**
+     * Encode this packet into a buffer taken from a pool, encoding the payload with the given codec
+     * @param pool The pool to take the buffer from
+     * @param c The codec to encode the payload with
+     * @return A buffer containing the encoded packet, ready to be read
+     */
+    public ByteBuffer encode(BufferPool pool, PayloadCodec c) {
+        ByteBuffer buffer = pool.acquire(encodedLength(c));
+        writeTo(buffer, c);
+        return buffer.flip();
+    }
+
+    /**
+     * Transform the given data into a JSONObject. The payload is only parsed the first time this is called, after
+     * that the same object is returned, so callers which want to modify the data without affecting other users of
+     * the packet should copy it first.
+     * @return The JSONObject contained within this packet's payload, or null if the payload is empty
      */
     public JSONObject getData() {
-        String p = new String(payload, StandardCharsets.UTF_8);
+        JSONObject d = data;
+        if (d != null || length == 0) return d;
 
+        ServerEvents.PacketDecode event = new ServerEvents.PacketDecode();
+        event.begin();
         try {
-            return (JSONObject) new JSONParser().parse(p);
+            d = codec.decode(payload, 0, length);
+            data = d;
+            return d;
 
-        } catch (ParseException e) {
-            System.out.println("\033[91;3m----- PACKET JSON DECODE ERROR -----\n");
-            System.out.println("Culprit String: " + p + "\n\nError:\n");
+        } catch (IOException e) {
+            System.out.println("\033[91;3m----- PACKET " + codec.name().toUpperCase() + " DECODE ERROR -----\n");
+            System.out.println("Error:\n");
             e.printStackTrace();
             System.out.println("\033[0m");
             return null;
         }
+        finally {
+            if (event.shouldCommit()) {
+                event.codec = codec.name();
+                event.length = length;
+                event.finish();
+            }
+        }
+    }
+
+    /**
+     * Remove the request ID from the payload of the first packet of a request sequence
+     * @return The request ID, or null if the packet does not have one
+     * @throws IllegalArgumentException Thrown if the request ID is neither a string nor an integer
+     */
+    public Object takeRequestId() {
+        if (data == null && length == 0) return null;
+
+        JSONObject d = getData();
+        Object id = d == null ? null : d.remove("requestId");
+        if (id != null && !(id instanceof String || id instanceof Long)) {
+            throw new IllegalArgumentException("The request ID must be a string or an integer");
+        }
+
+        return id;
+    }
+
+    /**
+     * Create a copy of a response packet with the ID of the request it answers added to its payload
+     * @param p The response packet
+     * @param requestId The request ID
+     * @return The tagged copy, the original packet is not modified
+     */
+    public static Packet withRequestId(Packet p, Object requestId) {
+        JSONObject d = p.data;
+        if (d == null && p.length > 0) d = p.getData();
+
+        JSONObject copy = d == null ? new JSONObject() : new JSONObject(d);
+        copy.put("requestId", requestId);
+        return fromJSON(p.type, p.isFinal, copy);
     }
 
     /**
@@ -813,7 +1209,7 @@ public class Packet {
      */
     public JSONObject getData_WebSocket() {
         JSONObject d = getData();
-        d = d == null ? new JSONObject() : d;
+        d = d == null ? new JSONObject() : new JSONObject(d);
         d.put("type", type);
         d.put("isFinal", isFinal);
         return d;
@@ -830,7 +1226,7 @@ public class Packet {
         p.isFinal = (boolean) data.get("isFinal");
         data.remove("type");
         data.remove("isFinal");
-        p.payload = data.toJSONString().getBytes(StandardCharsets.UTF_8);
+        p.data = data;
 
         return p;
     }
@@ -840,24 +1236,18 @@ public class Packet {
      * @return A byte array containing the data required to correctly reconstruct the packet when it is received
      */
     public byte[] getBytes() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        try {
-            dos.writeInt(type);
-            dos.writeBoolean(isFinal);
-            dos.writeInt(payload.length);
-            dos.write(payload);
-
-            byte[] res = baos.toByteArray();
-            dos.close();
-            baos.close();
-
-            return res;
+        return getBytes(codec);
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Get the byte representation of the packet with its payload encoded by the given codec
+     * @param c The codec to encode the payload with
+     * @return A byte array containing the encoded packet
+     */
+    public byte[] getBytes(PayloadCodec c) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(c));
+        writeTo(buffer, c);
+        return buffer.array();
     }
 
     /**
@@ -865,23 +1255,7 @@ public class Packet {
      * @return Packet with type TYPE_PING, and no payload
      */
     public static Packet createPing() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeInt(TYPE_PING);
-            dos.writeBoolean(true);
-            dos.writeInt(0);
-            dos.flush();
-
-            byte[] payload = baos.toByteArray();
-            dos.close();
-            baos.close();
-
-            return new Packet(new ByteArrayInputStream(payload));
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return new Packet(TYPE_PING, true, EMPTY_PAYLOAD);
     }
 
     /**
@@ -890,61 +1264,40 @@ public class Packet {
      * @return Packet with type TYPE_ERROR
      */
     public static Packet createError(String name, String msg) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeInt(TYPE_ERROR);
-            dos.writeBoolean(true);
-
-            JSONObject json = new JSONObject();
-            json.put("name", name);
-            json.put("msg", msg);
-
-            byte[] s = json.toJSONString().getBytes(StandardCharsets.UTF_8);
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("msg", msg);
 
-            dos.writeInt(s.length);
-            dos.write(s);
-            dos.flush();
-
-            byte[] payload = baos.toByteArray();
-            dos.close();
-            baos.close();
+        return fromJSON(TYPE_ERROR, true, json);
+    }
 
-            return new Packet(new ByteArrayInputStream(payload));
+    /**
+     * Create a packet asking the client to reconnect later
+     * @param retryAfter Milliseconds the client should wait before reconnecting
+     * @param closingIn Milliseconds until the server will close the connection
+     * @param reason Why the client is being asked to leave
+     * @return Packet with type TYPE_RECONNECT_LATER
+     */
+    public static Packet createReconnectLater(long retryAfter, long closingIn, String reason) {
+        JSONObject json = new JSONObject();
+        json.put("retryAfter", retryAfter);
+        json.put("closingIn", closingIn);
+        json.put("reason", reason);
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return fromJSON(TYPE_RECONNECT_LATER, true, json);
     }
 
     /**
-     * Create a basic data packet
+     * Create a basic data packet. The payload is serialized when the packet is first encoded, so it must not be
+     * modified after it has been passed to this method.
      * @param type The type of the packet
      * @param isFinal Whether this is the final packet in its sequence or not
      * @param payload The data to be entered into this packet's payload
      * @return The resulting packet object.
+     * @see #fromJSON(int, boolean, JSONObject)
      */
     public static Packet createPacket(int type, boolean isFinal, JSONObject payload) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        try {
-            dos.writeInt(type);
-            dos.writeBoolean(isFinal);
-            byte[] s = payload != null ? payload.toJSONString().getBytes(StandardCharsets.UTF_8) : new byte[0];
-            dos.writeInt(s.length);
-            dos.write(s);
-            dos.flush();
-
-            byte[] result = baos.toByteArray();
-            dos.close();
-            baos.close();
-
-            return new Packet(new ByteArrayInputStream(result));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
+        return fromJSON(type, isFinal, payload);
     }
 
     /**
@@ -952,27 +1305,12 @@ public class Packet {
      * @return The closing packet
      */
     public static Packet createClose() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeInt(TYPE_CLOSE);
-            dos.writeBoolean(true);
-            dos.writeInt(0);
-            dos.flush();
-
-            byte[] payload = baos.toByteArray();
-            dos.close();
-            baos.close();
-
-            return new Packet(new ByteArrayInputStream(payload));
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return new Packet(TYPE_CLOSE, true, EMPTY_PAYLOAD);
     }
 
     @Override
     public String toString() {
-        return "{\n\t\"type\": " + type + ",\n\t\"isFinal\": " + isFinal + ",\n\t\"length\": " + payload.length + "\n}";
+        ensurePayload();
+        return "{\n\t\"type\": " + type + ",\n\t\"isFinal\": " + isFinal + ",\n\t\"length\": " + length + "\n}";
     }
 }
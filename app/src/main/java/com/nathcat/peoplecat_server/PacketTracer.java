@@ -0,0 +1,200 @@
+package com.nathcat.peoplecat_server;
+
+import org.json.simple.JSONObject;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Decides which packets are written to the log in full, and writes them.</p>
+ * <p>
+ *     Packets can be selected by the connection they pass through, by the user that connection is authenticated as,
+ *     or by their type, and a sample rate limits the share of selected packets which are actually dumped. Dumping a
+ *     packet means decoding its payload and serialising it again, so nothing is built unless the packet is selected
+ *     and sampled, and while nothing is selected the only cost per packet is reading one volatile field.
+ * </p>
+ * <p>
+ *     Traces are logged at the TRACE level but are written whatever the log's level is, since they were asked for
+ *     individually. The selection and the log level can be changed while the server runs through the
+ *     <code>PacketTracerMBean</code> interface, which the server registers with the platform MBean server.
+ * </p>
+ */
+public class PacketTracer implements PacketTracerMBean {
+    /**
+     * True if anything at all is selected, checked before anything else is looked at
+     */
+    private volatile boolean active = false;
+    private volatile boolean traceAll = false;
+    private volatile double sampleRate;
+    /**
+     * One bit for each selected packet type
+     */
+    private volatile long types = 0;
+    private final Set<Long> connections = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> users = ConcurrentHashMap.newKeySet();
+    private final LongAdder traced = new LongAdder();
+
+    /**
+     * @param sampleRate The fraction of selected packets to trace, between 0 and 1
+     */
+    public PacketTracer(double sampleRate) {
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * Log a packet in full if it is selected for tracing
+     * @param handler The connection the packet passed through
+     * @param event What happened to the packet, such as "Received packet"
+     * @param p The packet
+     */
+    public void trace(ConnectionHandler handler, String event, Packet p) {
+        if (!active || !selects(handler, p.type)) return;
+
+        double rate = sampleRate;
+        if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) return;
+
+        AsyncLog log = Server.logger;
+        if (log == null) return;
+
+        traced.increment();
+        // Packets built from JSON are not encoded until they are written, so they have no length yet
+        if (p.payload == null) log.publish(AsyncLog.Level.TRACE, handler, event, "type", p.type, "final", p.isFinal, "data", dump(p));
+        else log.publish(AsyncLog.Level.TRACE, handler, event, "type", p.type, "final", p.isFinal, "length", p.length, "data", dump(p));
+    }
+
+    /**
+     * Log several packets in full if they are selected for tracing
+     * @param handler The connection the packets passed through
+     * @param event What happened to the packets
+     * @param sequence The packets
+     */
+    public void trace(ConnectionHandler handler, String event, Packet[] sequence) {
+        if (!active) return;
+
+        for (Packet p : sequence) trace(handler, event, p);
+    }
+
+    private boolean selects(ConnectionHandler handler, int type) {
+        if (traceAll) return true;
+        if (type >= 0 && type < 64 && (types >>> type & 1) != 0) return true;
+        if (!connections.isEmpty() && connections.contains(handler.threadId())) return true;
+
+        JSONObject user = handler.user;
+        return !users.isEmpty() && user != null && user.get("id") instanceof Number id && users.contains(id.intValue());
+    }
+
+    private static String dump(Packet p) {
+        try {
+            JSONObject data = p.getData();
+            return data == null ? "" : data.toJSONString();
+
+        } catch (RuntimeException e) {
+            return "<" + e.getClass().getSimpleName() + ">";
+        }
+    }
+
+    private void update() {
+        active = traceAll || types != 0 || !connections.isEmpty() || !users.isEmpty();
+    }
+
+    @Override
+    public String getLogLevel() {
+        AsyncLog log = Server.logger;
+        return log == null ? null : log.getLevel().name();
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        AsyncLog log = Server.logger;
+        if (log != null) log.setLevel(AsyncLog.Level.valueOf(level.trim().toUpperCase()));
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void setSampleRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        sampleRate = rate;
+    }
+
+    @Override
+    public boolean isTraceAll() {
+        return traceAll;
+    }
+
+    @Override
+    public synchronized void setTraceAll(boolean traceAll) {
+        this.traceAll = traceAll;
+        update();
+    }
+
+    @Override
+    public synchronized void traceConnection(long handlerId) {
+        connections.add(handlerId);
+        update();
+    }
+
+    @Override
+    public synchronized void untraceConnection(long handlerId) {
+        connections.remove(handlerId);
+        update();
+    }
+
+    @Override
+    public synchronized void traceUser(int userId) {
+        users.add(userId);
+        update();
+    }
+
+    @Override
+    public synchronized void untraceUser(int userId) {
+        users.remove(userId);
+        update();
+    }
+
+    @Override
+    public synchronized void tracePacketType(int type) {
+        if (type < 0 || type >= 64) throw new IllegalArgumentException("Invalid packet type " + type);
+        types |= 1L << type;
+        update();
+    }
+
+    @Override
+    public synchronized void untracePacketType(int type) {
+        if (type < 0 || type >= 64) throw new IllegalArgumentException("Invalid packet type " + type);
+        types &= ~(1L << type);
+        update();
+    }
+
+    @Override
+    public synchronized void clear() {
+        traceAll = false;
+        types = 0;
+        connections.clear();
+        users.clear();
+        update();
+    }
+
+    @Override
+    public String getSelection() {
+        if (traceAll) return "all packets";
+
+        TreeSet<Integer> typeList = new TreeSet<>();
+        for (int t = 0; t < 64; t++) {
+            if ((types >>> t & 1) != 0) typeList.add(t);
+        }
+
+        return "connections " + new TreeSet<>(connections) + ", users " + new TreeSet<>(users) + ", types " + typeList;
+    }
+
+    @Override
+    public long getTracedPackets() {
+        return traced.sum();
+    }
+}
@@ -0,0 +1,88 @@
+package com.nathcat.peoplecat_server;
+
+/**
+ * The management interface of <code>PacketTracer</code>, which lets the log level and packet tracing be changed
+ * through JMX while the server is running, for example from JConsole.
+ */
+public interface PacketTracerMBean {
+    /**
+     * @return The lowest level of event which is logged
+     */
+    String getLogLevel();
+
+    /**
+     * @param level The lowest level of event to log, one of TRACE, DEBUG, INFO, WARN or ERROR
+     */
+    void setLogLevel(String level);
+
+    /**
+     * @return The fraction of selected packets which are traced
+     */
+    double getSampleRate();
+
+    /**
+     * @param rate The fraction of selected packets to trace, between 0 and 1
+     */
+    void setSampleRate(double rate);
+
+    /**
+     * @return True if every packet is selected for tracing
+     */
+    boolean isTraceAll();
+
+    /**
+     * @param traceAll True to select every packet for tracing
+     */
+    void setTraceAll(boolean traceAll);
+
+    /**
+     * Trace the packets sent and received by a connection
+     * @param handlerId The ID of the connection's handler, as shown in the log
+     */
+    void traceConnection(long handlerId);
+
+    /**
+     * Stop tracing a connection
+     * @param handlerId The ID of the connection's handler
+     */
+    void untraceConnection(long handlerId);
+
+    /**
+     * Trace the packets sent and received by every session of a user
+     * @param userId The ID of the user
+     */
+    void traceUser(int userId);
+
+    /**
+     * Stop tracing a user
+     * @param userId The ID of the user
+     */
+    void untraceUser(int userId);
+
+    /**
+     * Trace every packet of a type
+     * @param type One of the <code>Packet.TYPE_*</code> constants
+     */
+    void tracePacketType(int type);
+
+    /**
+     * Stop tracing a packet type
+     * @param type One of the <code>Packet.TYPE_*</code> constants
+     */
+    void untracePacketType(int type);
+
+    /**
+     * Stop tracing everything
+     */
+    void clear();
+
+    /**
+     * @return A description of what is currently being traced
+     */
+    String getSelection();
+
+    /**
+     * @return The number of packets traced since the server started
+     */
+    long getTracedPackets();
+}
@@ -0,0 +1,64 @@
+package com.nathcat.peoplecat_server;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * <p>Converts packet payloads between their decoded <code>JSONObject</code> form and the bytes sent on the wire.</p>
+ * <p>
+ *     Every connection starts out using <code>JSON</code>. A client may ask to switch to another codec by including a
+ *     <code>codec</code> field in a <code>TYPE_AUTHENTICATE</code> or <code>TYPE_GET_SERVER_INFO</code> request, the
+ *     response to that request is still encoded with the old codec, and every packet after it in either direction
+ *     uses the new one, including packets the client sends before the response arrives. The exception is a switch
+ *     requested with a request ID, since such requests are handled alongside the ones after them, so a client which
+ *     tags the request must wait for its response before sending anything else. Handlers never see the difference,
+ *     since they only work with decoded <code>JSONObject</code>s.
+ * </p>
+ * @see Packet#codec
+ */
+public interface PayloadCodec {
+    /**
+     * JSON text, encoded as UTF-8. This is the default codec.
+     */
+    PayloadCodec JSON = new JsonCodec();
+    /**
+     * A compact binary encoding following the MessagePack specification
+     */
+    PayloadCodec MESSAGE_PACK = new MessagePackCodec();
+
+    /**
+     * @return The name clients use to select this codec
+     */
+    String name();
+
+    /**
+     * Encode a payload
+     * @param data The payload data, may be null for an empty payload
+     * @return The encoded payload
+     */
+    byte[] encode(JSONObject data);
+
+    /**
+     * Decode a payload
+     * @param bytes The array holding the encoded payload
+     * @param offset The index of the first byte of the payload
+     * @param length The length of the payload in bytes
+     * @return The decoded payload
+     * @throws IOException Thrown if the payload is not valid for this codec
+     */
+    JSONObject decode(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Find a codec by the name clients use to select it
+     * @param name The name of the codec
+     * @return The codec, or null if there is no codec with that name
+     */
+    static PayloadCodec forName(String name) {
+        return switch (name) {
+            case "json" -> JSON;
+            case "msgpack" -> MESSAGE_PACK;
+            default -> null;
+        };
+    }
+}
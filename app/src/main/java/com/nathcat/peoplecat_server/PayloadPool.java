@@ -0,0 +1,116 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A pool of byte arrays used to hold the payloads of inbound packets.</p>
+ * <p>
+ *     Arrays are grouped into power of two size classes, from 256 bytes up to 64 KiB, each holding a bounded number
+ *     of free arrays. Payloads larger than the biggest class get an array of exactly the right size which is never
+ *     pooled. Payloads larger than the pool's maximum payload size are refused, so that a hostile length field cannot
+ *     make the server allocate an arbitrarily large array.
+ * </p>
+ * <p>
+ *     Since pooled arrays are usually larger than the payload they hold, the payload length must always be taken
+ *     from <code>Packet.length</code> rather than from the array. Arrays are returned to the pool with
+ *     <code>Packet.release()</code> once a packet sequence has been handled.
+ * </p>
+ */
+public class PayloadPool {
+    /**
+     * The largest payload, in bytes, which will be accepted
+     */
+    public final int maxPayloadSize;
+    /**
+     * The largest packet sequence, in bytes, which will be accepted, counting the header of every packet
+     */
+    public final int maxSequenceSize;
+    private final SizeClasses<byte[]> classes;
+    /**
+     * Number of arrays handed out which were taken from the pool
+     */
+    public final AtomicLong reused = new AtomicLong();
+    /**
+     * Number of arrays handed out which had to be allocated
+     */
+    public final AtomicLong allocated = new AtomicLong();
+    /**
+     * Number of payloads refused for being larger than the maximum payload size
+     */
+    public final AtomicLong rejected = new AtomicLong();
+    /**
+     * Number of packet sequences refused for being larger than the maximum sequence size
+     */
+    public final AtomicLong sequencesRejected = new AtomicLong();
+
+    /**
+     * Create a new pool
+     * @param maxPayloadSize The largest payload, in bytes, which will be accepted
+     * @param maxSequenceSize The largest packet sequence, in bytes, which will be accepted
+     * @param arraysPerClass The maximum number of free arrays to keep in each size class
+     */
+    public PayloadPool(int maxPayloadSize, int maxSequenceSize, int arraysPerClass) {
+        this.maxPayloadSize = maxPayloadSize;
+        this.maxSequenceSize = maxSequenceSize;
+        classes = new SizeClasses<>(8, 16, arraysPerClass);
+    }
+
+    /**
+     * Check that a payload length is acceptable
+     * @param length The payload length taken from a packet header
+     * @throws IOException Thrown if the length is negative or larger than the maximum payload size
+     */
+    public void checkLength(int length) throws IOException {
+        if (length < 0 || length > maxPayloadSize) {
+            rejected.incrementAndGet();
+            throw new IOException("Payload length " + length + " is outside of the accepted range 0 - " + maxPayloadSize);
+        }
+    }
+
+    /**
+     * Check that a partially received packet sequence has not grown too large. A sequence is held in memory until
+     * its final packet arrives, so without this a client could send non-final packets forever.
+     * @param size The total size of the packets received so far in the sequence, headers included
+     * @throws IOException Thrown if the sequence is larger than the maximum sequence size
+     */
+    public void checkSequenceSize(long size) throws IOException {
+        if (size > maxSequenceSize) {
+            sequencesRejected.incrementAndGet();
+            throw new IOException("Packet sequence of at least " + size + " bytes is larger than the maximum of " + maxSequenceSize);
+        }
+    }
+
+    /**
+     * Get an array which can hold at least the given number of bytes
+     * @param length The payload length
+     * @return An array of at least <code>length</code> bytes, the contents of which are undefined
+     * @throws IOException Thrown if the length is not acceptable
+     */
+    public byte[] acquire(int length) throws IOException {
+        checkLength(length);
+
+        int c = classes.classFor(length);
+        if (c == -1) {
+            allocated.incrementAndGet();
+            return new byte[length];
+        }
+
+        byte[] array = classes.poll(c);
+        if (array == null) {
+            allocated.incrementAndGet();
+            return new byte[classes.sizeOf(c)];
+        }
+
+        reused.incrementAndGet();
+        return array;
+    }
+
+    /**
+     * Return an array to the pool. Arrays which are not exactly the size of a size class are ignored.
+     * @param array The array to return
+     */
+    public void release(byte[] array) {
+        classes.offer(array, array.length);
+    }
+}
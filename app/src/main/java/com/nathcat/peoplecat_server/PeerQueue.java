@@ -0,0 +1,188 @@
+package com.nathcat.peoplecat_server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * <p>Messages waiting to be sent from this node to one peer of the cluster, along with metrics about them.</p>
+ * <p>
+ *     Any thread may queue a message without waiting on the network. The peer's sender thread takes everything which
+ *     has been queued since its last send as a single batch, so a burst of notifications costs one write rather than
+ *     one for each message. The queue is bounded by the number of bytes it holds. Messages offered while it is
+ *     full or while the peer is not connected are dropped, as are messages still queued when the peer disconnects.
+ * </p>
+ * <p>
+ *     Nothing dropped is sent again by the queue. Presence is recovered because <code>Cluster</code> sends a full
+ *     snapshot whenever a peer connects, but a dropped notification delivery is lost for good, and the recipients on
+ *     that peer only see the message once they next fetch the chat.
+ * </p>
+ */
+public class PeerQueue {
+    /**
+     * The ID of the peer this queue sends to
+     */
+    public final String peer;
+    private final long maxQueuedBytes;
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private boolean connected = false;
+    private boolean closed = false;
+    private boolean woken = false;
+
+    private long messagesSent = 0;
+    private long batchesSent = 0;
+    private long bytesSent = 0;
+    private long dropped = 0;
+    private int largestBatch = 0;
+
+    /**
+     * @param peer The ID of the peer this queue sends to
+     * @param maxQueuedBytes The most bytes which may be waiting to be sent
+     */
+    public PeerQueue(String peer, long maxQueuedBytes) {
+        this.peer = peer;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Queue a message to be sent to the peer. The queue takes ownership of the buffer.
+     * @param message The message
+     * @return True if the message was queued, false if it was dropped
+     */
+    public synchronized boolean offer(ByteBuffer message) {
+        if (!connected || closed || queuedBytes + message.remaining() > maxQueuedBytes) {
+            dropped++;
+            return false;
+        }
+
+        queue.add(message);
+        queuedBytes += message.remaining();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait for messages to be queued, then take them as a single batch
+     * @param maxBytes The most bytes to take, although a single message larger than this is still taken on its own
+     * @return The messages taken, in the order they were queued, which is empty if the sender was woken with
+     *         <code>wake</code>, or null if the queue has been closed
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting
+     */
+    public synchronized ArrayList<ByteBuffer> takeBatch(int maxBytes) throws InterruptedException {
+        while (queue.isEmpty() && !closed && !woken) wait();
+        woken = false;
+        if (closed) return null;
+
+        ArrayList<ByteBuffer> batch = new ArrayList<>();
+        if (queue.isEmpty()) return batch;
+
+        long bytes = 0;
+        while (!queue.isEmpty() && (batch.isEmpty() || bytes + queue.peek().remaining() <= maxBytes)) {
+            ByteBuffer message = queue.poll();
+            bytes += message.remaining();
+            batch.add(message);
+        }
+
+        queuedBytes -= bytes;
+        messagesSent += batch.size();
+        batchesSent++;
+        bytesSent += bytes;
+        largestBatch = Math.max(largestBatch, batch.size());
+        return batch;
+    }
+
+    /**
+     * Record whether the peer can currently be sent messages. Messages still queued when the peer disconnects are
+     * dropped.
+     * @param connected True if the peer is connected
+     */
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+        if (!connected) {
+            dropped += queue.size();
+            queue.clear();
+            queuedBytes = 0;
+        }
+    }
+
+    /**
+     * Wake the sender thread even if nothing is queued, so that it can check on its connection
+     */
+    public synchronized void wake() {
+        woken = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop accepting messages and wake the sender thread so that it exits
+     */
+    public synchronized void close() {
+        closed = true;
+        connected = false;
+        queue.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return The number of messages waiting to be sent
+     */
+    public synchronized int depth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of bytes waiting to be sent
+     */
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return The number of messages taken to be sent
+     */
+    public synchronized long messagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * @return The number of batches taken to be sent
+     */
+    public synchronized long batchesSent() {
+        return batchesSent;
+    }
+
+    /**
+     * @return The number of bytes taken to be sent
+     */
+    public synchronized long bytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of messages dropped because the queue was full, the peer was not connected, or they were
+     *         still queued when it disconnected
+     */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The largest number of messages taken in a single batch
+     */
+    public synchronized int largestBatch() {
+        return largestBatch;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Peer " + peer + (connected ? " (connected)" : " (disconnected)") + ": depth " + queue.size()
+                + ", queued " + queuedBytes + " bytes, sent " + messagesSent + " messages in " + batchesSent
+                + " batches, dropped " + dropped;
+    }
+}
@@ -0,0 +1,280 @@
+package com.nathcat.peoplecat_server;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <p>Maps user IDs to the handlers of the sessions they currently have open on this server.</p>
+ * <p>
+ *     The index is split into stripes, each an open addressing hash table keyed by primitive user IDs and guarded by
+ *     its own lock, so that updates for different users rarely contend. The sessions of each user are stored as an
+ *     immutable array which is replaced whenever a session is added or removed. Lookups use an optimistic read and
+ *     hand out this array directly, so reading a user's sessions neither copies nor allocates, and the returned
+ *     array can be iterated safely while other threads update the index.
+ * </p>
+ */
+public class PresenceIndex {
+    /**
+     * Returned for users with no open sessions
+     */
+    public static final ClientHandler[] NO_SESSIONS = new ClientHandler[0];
+
+    private static final int STRIPE_COUNT = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+    /**
+     * The keys and values of a stripe's table, replaced as a whole when the table is resized.
+     */
+    private static final class Table {
+        final int[] keys;
+        final ClientHandler[][] values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new ClientHandler[capacity][];
+        }
+    }
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        Table table = new Table(INITIAL_STRIPE_CAPACITY);
+        int size = 0;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    public PresenceIndex() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int hash(int userId) {
+        int h = userId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Stripe stripeFor(int hash) {
+        return stripes[(hash >>> 26) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Find the slot of a user in a table
+     * @return The slot index, or the negated free slot index minus one if the user is not in the table
+     */
+    private static int find(Table t, int userId, int hash) {
+        int mask = t.keys.length - 1;
+        for (int i = hash & mask, probes = 0; probes < t.keys.length; i = (i + 1) & mask, probes++) {
+            if (t.values[i] == null) return -i - 1;
+            if (t.keys[i] == userId) return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the sessions a user currently has open. The returned array must not be modified.
+     * @param userId The ID of the user
+     * @return The user's open sessions, or <code>NO_SESSIONS</code> if they have none
+     */
+    public ClientHandler[] sessions(int userId) {
+        int hash = hash(userId);
+        Stripe stripe = stripeFor(hash);
+
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            ClientHandler[] result = lookup(stripe.table, userId, hash);
+            if (stripe.lock.validate(stamp)) return result;
+        }
+
+        stamp = stripe.lock.readLock();
+        try {
+            return lookup(stripe.table, userId, hash);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    private static ClientHandler[] lookup(Table t, int userId, int hash) {
+        int slot = find(t, userId, hash);
+        if (slot < 0) return NO_SESSIONS;
+
+        ClientHandler[] sessions = t.values[slot];
+        return sessions == null ? NO_SESSIONS : sessions;
+    }
+
+    /**
+     * Run an action for each session a user has open
+     * @param userId The ID of the user
+     * @param action The action to perform on each session
+     */
+    public void forEachSession(int userId, Consumer<ClientHandler> action) {
+        for (ClientHandler h : sessions(userId)) {
+            action.accept(h);
+        }
+    }
+
+    /**
+     * Check whether a user has any sessions open
+     * @param userId The ID of the user
+     * @return True if the user has at least one open session
+     */
+    public boolean isOnline(int userId) {
+        return sessions(userId).length != 0;
+    }
+
+    /**
+     * Record a new session for a user. Adding the same handler twice has no effect.
+     * @param userId The ID of the user
+     * @param handler The handler of the session
+     * @return True if this is the user's only session, so they have just come online
+     */
+    public boolean add(int userId, ClientHandler handler) {
+        int hash = hash(userId);
+        Stripe stripe = stripeFor(hash);
+
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table t = stripe.table;
+            int slot = find(t, userId, hash);
+
+            if (slot >= 0) {
+                ClientHandler[] current = t.values[slot];
+                for (ClientHandler h : current) {
+                    if (h == handler) return false;
+                }
+
+                ClientHandler[] updated = new ClientHandler[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = handler;
+                t.values[slot] = updated;
+                return false;
+            }
+
+            if ((stripe.size + 1) * 4 > t.keys.length * 3) {
+                t = resize(stripe);
+                slot = find(t, userId, hash);
+            }
+
+            slot = -slot - 1;
+            t.keys[slot] = userId;
+            t.values[slot] = new ClientHandler[] { handler };
+            stripe.size++;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove a session of a user. Removing a session which is not in the index has no effect.
+     * @param userId The ID of the user
+     * @param handler The handler of the session
+     * @return True if this was the user's last session, so they have just gone offline
+     */
+    public boolean remove(int userId, ClientHandler handler) {
+        int hash = hash(userId);
+        Stripe stripe = stripeFor(hash);
+
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table t = stripe.table;
+            int slot = find(t, userId, hash);
+            if (slot < 0) return false;
+
+            ClientHandler[] current = t.values[slot];
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == handler) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index == -1) return false;
+
+            if (current.length > 1) {
+                ClientHandler[] updated = new ClientHandler[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+                t.values[slot] = updated;
+                return false;
+            }
+
+            deleteSlot(t, slot);
+            stripe.size--;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get every user with at least one session open. Each stripe is copied under its own lock, so the result is not
+     * a single consistent snapshot if sessions are added or removed while it is being built.
+     * @return The IDs of the users
+     */
+    public int[] users() {
+        int[] result = new int[0];
+        int count = 0;
+
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                Table t = stripe.table;
+                if (count + stripe.size > result.length) {
+                    result = Arrays.copyOf(result, Math.max(result.length * 2, count + stripe.size));
+                }
+
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.values[i] != null) result[count++] = t.keys[i];
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Empty a slot, shifting back any entries which were displaced past it so that probing still finds them.
+     */
+    private static void deleteSlot(Table t, int slot) {
+        int mask = t.keys.length - 1;
+        int gap = slot;
+        int i = (slot + 1) & mask;
+
+        while (t.values[i] != null) {
+            int home = hash(t.keys[i]) & mask;
+            // Move the entry into the gap if its home slot does not lie between the gap and its current slot
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                t.keys[gap] = t.keys[i];
+                t.values[gap] = t.values[i];
+                gap = i;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        t.values[gap] = null;
+        t.keys[gap] = 0;
+    }
+
+    private static Table resize(Stripe stripe) {
+        Table old = stripe.table;
+        Table t = new Table(old.keys.length * 2);
+
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.values[i] == null) continue;
+
+            int slot = -find(t, old.keys[i], hash(old.keys[i])) - 1;
+            t.keys[slot] = old.keys[i];
+            t.values[slot] = old.values[i];
+        }
+
+        stripe.table = t;
+        return t;
+    }
+}
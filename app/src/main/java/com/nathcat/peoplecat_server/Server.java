@@ -3,6 +3,8 @@ package com.nathcat.peoplecat_server;
 import com.mysql.cj.x.protobuf.MysqlxPrepare;
 import com.nathcat.peoplecat_database.Database;
 import com.nathcat.peoplecat_database.KeyManager;
+import com.nathcat.peoplecat_diagnostics.RequestTrace;
+import com.nathcat.peoplecat_diagnostics.ServerEvents;
 import nl.martijndwars.webpush.Notification;
 import nl.martijndwars.webpush.PushAsyncService;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -11,28 +13,83 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 public class Server {
     public static class Options {
-        public int port;
-        public int threadCount;
-        public boolean useSSL;
-        public String logFile;
+        public int port = 1234;
+        public int threadCount = 10;
+        public boolean useSSL = true;
+        public String logFile = "log.txt";
+        public boolean useNio = false;
+        public int eventLoopCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        public boolean useVirtualThreads = false;
+        public long outboundHighWater = 1024 * 1024;
+        public long outboundLowWater = 256 * 1024;
+        public OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DISCONNECT;
+        public long slowConsumerGraceMillis = 30_000;
+        public int maxPayloadSize = 1024 * 1024;
+        public int maxSequenceSize = 4 * 1024 * 1024;
+        public boolean useDeflate = false;
+        public int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+        public int deflateThreshold = 1024;
+        public DeflateExtension.ContextTakeover deflateContextTakeover = DeflateExtension.ContextTakeover.CLIENT;
+        public int maxInFlightRequests = 8;
+        public int maxQueuedRequests = 64;
+        public int handlerThreads = 32;
+        public int decoderCount = Runtime.getRuntime().availableProcessors();
+        public int acceptorCount = 1;
+        public double connectRate = 0;
+        public int connectBurst = 20;
+        public int maxOpenConnections = 0;
+        public long idleTimeoutMillis = 0;
+        public long probeTimeoutMillis = 20_000;
+        public long drainTimeoutMillis = 30_000;
+        public long drainSpreadMillis = 10_000;
+        public long reconnectJitterMillis = 30_000;
+        public String clusterNodeId = null;
+        public int clusterPort = 4321;
+        public String clusterPeers = null;
+        public long clusterQueueBytes = 8 * 1024 * 1024;
+        public int clusterVirtualNodes = 128;
+        public long clusterCallTimeoutMillis = 5000;
+        public long logMaxBytes = 64 * 1024 * 1024;
+        public long logRotateMillis = 24 * 60 * 60 * 1000;
+        public int logKeepFiles = 5;
+        public int logBufferEvents = 1 << 16;
+        public AsyncLog.Level logLevel = AsyncLog.Level.INFO;
+        public double traceSampleRate = 1;
+        public Set<Integer> adminUsers = Set.of();
+        public int metricsPort = 0;
+        public String metricsBindAddress = "127.0.0.1";
+        public long slowRequestMillis = 1000;
+
+        public Options() {}
 
         public Options(int port, int threadCount, boolean useSSL, String logFile) {
             this.port = port;
@@ -42,61 +99,275 @@ public class Server {
         }
     }
 
-    public class HandlerCleanerThread extends Thread {
-        private final boolean livingHandlersMode;
-
-        /**
-         * Create a new Handler cleaning thread
-         * @param livingHandlersMode Overrides the conditions which check if a handler's thread is actually running.
-         *                           Will be used mainly with the <code>WebSocketHandler</code> since this does not allow
-         *                           <code>ClientHandlers</code> to run in their own thread.
-         */
-        public HandlerCleanerThread(boolean livingHandlersMode) {
-            this.setDaemon(true);
-            this.livingHandlersMode = livingHandlersMode;
-        }
-
-        /**
-         * Default constructor, sets <code>livingHandlerMode</code> to <code>true</code>.
-         */
-        public HandlerCleanerThread() {
-            this.setDaemon(true);
-            this.livingHandlersMode = true;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                for (int i = 0; i < handlers.size(); i++) {
-                    if (!handlers.get(i).active || ((!handlers.get(i).isAlive() || handlers.get(i).isInterrupted()) && livingHandlersMode)) {
-                        handlers.remove(i);
-                    }
-                }
-
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-    }
-
-    public static final String version = "5.2.3";
+    public static final String version = "5.6.0";
 
     public int port;
     public int threadCount;
     public boolean useSSL;
     public String logFile;
+    /**
+     * The size at which the log file is rotated, 0 to never rotate on size
+     */
+    public long logMaxBytes;
+    /**
+     * How long the log file is written to before it is rotated, 0 to never rotate on time
+     */
+    public long logRotateMillis;
+    /**
+     * The number of rotated log files to keep
+     */
+    public int logKeepFiles;
+    /**
+     * The number of log events which may be waiting for the log writer before further events are dropped
+     */
+    public int logBufferEvents;
+    /**
+     * The lowest level of event to log
+     */
+    public AsyncLog.Level logLevel;
+    /**
+     * The fraction of packets selected for tracing which are dumped to the log
+     */
+    public double traceSampleRate;
+    /**
+     * Decides which packets are dumped to the log, can be changed at runtime through JMX
+     */
+    public PacketTracer tracer;
+    /**
+     * The IDs of the users who may make administrative requests, such as reading the server's metrics
+     */
+    public Set<Integer> adminUsers;
+    /**
+     * The port to serve metrics over HTTP on, 0 to not serve them
+     */
+    public int metricsPort;
+    /**
+     * The address the metrics endpoint listens on
+     */
+    public String metricsBindAddress;
+    /**
+     * Requests which take longer than this are logged with the time they spent in each service, 0 to not trace
+     * requests
+     */
+    public long slowRequestMillis;
+    /**
+     * Request latencies and traffic for each packet type
+     */
+    public Metrics metrics;
+    /**
+     * The log every server message is written to, null until a server has been created
+     */
+    public static volatile AsyncLog logger;
+    /**
+     * If true, raw TCP connections are handled by a fixed pool of non-blocking event loops rather than a thread
+     * per connection.
+     * @see NioServer
+     */
+    public boolean useNio;
+    /**
+     * The number of event loops to use in non-blocking mode
+     */
+    public int eventLoopCount;
+    /**
+     * If true, each raw TCP connection runs on a virtual thread rather than a platform thread, and request
+     * sequences from websocket and non-blocking connections are handled on virtual threads rather than on the
+     * handler thread pool.
+     */
+    public boolean useVirtualThreads;
+    /**
+     * Starts a new virtual thread for each task, only available when <code>useVirtualThreads</code> is set
+     */
+    public ExecutorService virtualThreadExecutor;
+    /**
+     * Number of bytes which may be queued for a single connection before it is treated as a slow consumer
+     */
+    public long outboundHighWater;
+    /**
+     * Number of queued bytes a slow consumer must drain down to before it is treated normally again
+     */
+    public long outboundLowWater;
+    /**
+     * What to do with connections which stay over the outbound high water mark
+     */
+    public OutboundQueue.Policy slowConsumerPolicy;
+    /**
+     * How long a connection may stay over the high water mark before it is closed under the
+     * <code>DISCONNECT</code> policy
+     */
+    public long slowConsumerGraceMillis;
+    /**
+     * The largest inbound payload, in bytes, which will be accepted
+     */
+    public int maxPayloadSize;
+    /**
+     * The largest inbound packet sequence, in bytes, which will be accepted, counting the header of every packet.
+     * Connections which send a larger sequence are closed. Should be at least <code>maxPayloadSize</code> plus the
+     * size of a packet header, or the largest single packets will be refused.
+     */
+    public int maxSequenceSize;
+    /**
+     * Whether websocket connections may negotiate the permessage-deflate extension
+     */
+    public boolean useDeflate;
+    /**
+     * Compression level used by permessage-deflate, from 0 to 9, or -1 for the default level
+     */
+    public int deflateLevel;
+    /**
+     * Websocket messages smaller than this number of bytes are not compressed
+     */
+    public int deflateThreshold;
+    /**
+     * Which sides of a websocket connection keep their compression context between messages
+     */
+    public DeflateExtension.ContextTakeover deflateContextTakeover;
+    /**
+     * The number of requests with a request ID which each connection may have handled at once. If 0, or if there is
+     * no handler executor, they are handled in order with every other request.
+     */
+    public int maxInFlightRequests;
+    /**
+     * The number of request sequences each connection may have received but not yet finished handling. Sequences
+     * received beyond this are answered with an error rather than queued, so a client which sends requests faster
+     * than they are handled cannot grow the heap without bound. If 0 there is no limit.
+     */
+    public int maxQueuedRequests;
+    /**
+     * The number of platform threads used to handle request sequences from websocket and non-blocking connections,
+     * when virtual threads are not in use. If 0, sequences are handled on the thread which decoded them.
+     */
+    public int handlerThreads;
+    /**
+     * The number of threads the websocket server uses to decode frames
+     */
+    public int decoderCount;
+    /**
+     * The number of listening sockets to open on the port for raw TCP connections. If more than one, each is bound
+     * with <code>SO_REUSEPORT</code> and the kernel spreads incoming connections across them. Each listener has its
+     * own accepting thread, or in non-blocking mode is owned by one of the event loops.
+     */
+    public int acceptorCount;
+    /**
+     * The number of connections per second each remote address may make, 0 for no limit. Off by default. Enable it
+     * with <code>--connect-rate</code> and <code>--connect-burst</code> only when clients connect directly, since
+     * behind a reverse proxy every client shares the proxy's address. The burst must also cover the reconnections
+     * which a drain spreads over <code>reconnectJitterMillis</code>.
+     */
+    public double connectRate;
+    /**
+     * The number of connections a remote address may make at once after being idle, only used if
+     * <code>connectRate</code> is above 0
+     */
+    public int connectBurst;
+    /**
+     * The maximum number of open connections, including those still handshaking. If 0, <code>threadCount</code> is
+     * used.
+     */
+    public int maxOpenConnections;
+    /**
+     * Decides whether newly accepted connections may proceed
+     */
+    public AdmissionController admission;
+    /**
+     * How long a connection may receive nothing before it is probed, 0 to leave idle connections open. Off by default,
+     * since raw TCP clients must answer the probe's ping packet to stay connected, so only enable it once every
+     * client does.
+     */
+    public long idleTimeoutMillis;
+    /**
+     * How long a probed connection has to answer before it is closed
+     */
+    public long probeTimeoutMillis;
+    /**
+     * Closes connections which stop responding, null if <code>idleTimeoutMillis</code> is 0
+     */
+    public IdleTimer idleTimer;
+    /**
+     * The longest a shutdown may take, after which requests which are still being handled are abandoned
+     */
+    public long drainTimeoutMillis;
+    /**
+     * The window over which clients are asked to reconnect later when the server shuts down
+     */
+    public long drainSpreadMillis;
+    /**
+     * Clients asked to reconnect later wait a random time of up to this many milliseconds before they do
+     */
+    public long reconnectJitterMillis;
+    /**
+     * Shuts the server down gracefully when the JVM is asked to exit
+     */
+    public DrainController drain;
+    /**
+     * The ID of this node in a cluster, null if the server runs on its own. Every node of a cluster must share the
+     * same message box storage, see <code>ChatStore</code>
+     */
+    public String clusterNodeId;
+    /**
+     * The port other nodes of the cluster connect to
+     */
+    public int clusterPort;
+    /**
+     * The other nodes of the cluster, as comma separated <code>id=host:port</code> entries
+     */
+    public String clusterPeers;
+    /**
+     * The most bytes which may be waiting to be sent to each other node of the cluster
+     */
+    public long clusterQueueBytes;
+    /**
+     * The number of points each node is placed at on the cluster's hash ring
+     */
+    public int clusterVirtualNodes;
+    /**
+     * How long to wait for another node of the cluster to answer a request
+     */
+    public long clusterCallTimeoutMillis;
+    /**
+     * Reads and writes chat message boxes, forwarding operations on chats owned by other nodes
+     */
+    public ChatStore chats;
+    /**
+     * Shares users and notifications with the other nodes of the cluster
+     */
+    public Cluster cluster;
+    /**
+     * Handles request sequences away from the threads which perform I/O, null if they are handled on the thread
+     * which decoded them. Each connection's sequences still run one at a time, in order, apart from those with a
+     * request ID.
+     */
+    public ExecutorService handlerExecutor;
+    /**
+     * Compression counters across every websocket connection
+     */
+    public final DeflateExtension.Totals deflateTotals = new DeflateExtension.Totals();
+    /**
+     * Runs the tasks which write queued packets to clients
+     */
+    public ExecutorService writerExecutor;
+    /**
+     * Outbound queue settings and metrics shared by every connection
+     */
+    public OutboundQueue.Config outboundConfig;
+    /**
+     * Direct buffers used to encode outbound packets
+     */
+    public final BufferPool bufferPool = new BufferPool(1024);
+    /**
+     * Arrays used to hold inbound packet payloads
+     */
+    public PayloadPool payloadPool;
     public PushAsyncService pushService;
     public PublicKey pushServicePublicKey;
     public Database db;
-    public ArrayList<ClientHandler> handlers = new ArrayList<>();
     /**
-     * Maps a user's ID to their connected handler
+     * Every open connection to the server
+     */
+    public final ConnectionRegistry connections = new ConnectionRegistry();
+    /**
+     * Maps a user's ID to their connected handlers
      */
-    public HashMap<Integer, List<ClientHandler>> userToHandler = new HashMap<>();
-    private Thread handlerCleaner;
+    public final PresenceIndex presence = new PresenceIndex();
 
 
     public Server(Options options) throws NoSuchFieldException, IllegalAccessException, SQLException, IOException, ParseException {
@@ -105,9 +376,69 @@ public class Server {
             Server.class.getField(field.getName()).set(this, field.get(options));
         }
         
-        System.setOut(getLogStream());
-        System.setErr(getLogStream());
+        logger = new AsyncLog(Path.of(logFile), logBufferEvents, logMaxBytes, logRotateMillis, logKeepFiles);
+        logger.setLevel(logLevel);
+        logger.start();
+        System.setOut(logger.stream("stdout", AsyncLog.Level.INFO));
+        System.setErr(logger.stream("stderr", AsyncLog.Level.WARN));
+
+        tracer = new PacketTracer(traceSampleRate);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(tracer, new ObjectName("com.nathcat.peoplecat:type=PacketTracer"));
+        } catch (JMException e) {
+            log(AsyncLog.Level.WARN, "Failed to register the packet tracer with JMX", "error", e.toString());
+        }
+
+        if (useVirtualThreads) {
+            virtualThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            writerExecutor = virtualThreadExecutor;
+            handlerExecutor = virtualThreadExecutor;
+        }
+        else {
+            writerExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "OutboundWriter");
+                t.setDaemon(true);
+                return t;
+            });
+
+            if (handlerThreads > 0) {
+                handlerExecutor = Executors.newFixedThreadPool(handlerThreads, r -> {
+                    Thread t = new Thread(r, "PacketHandler");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        payloadPool = new PayloadPool(maxPayloadSize, maxSequenceSize, 1024);
+        admission = new AdmissionController(connectRate, connectBurst, maxOpenConnections > 0 ? maxOpenConnections : threadCount, 1 << 16);
+        drain = new DrainController(this);
+        Runtime.getRuntime().addShutdownHook(new Thread(drain::drain, "Drain"));
+
+        if (idleTimeoutMillis > 0) {
+            long tickMillis = Math.max(10, Math.min(1000, Math.min(idleTimeoutMillis, probeTimeoutMillis) / 4));
+            idleTimer = new IdleTimer(connections, handlerExecutor != null ? handlerExecutor : writerExecutor, tickMillis,
+                    idleTimeoutMillis, probeTimeoutMillis);
+            connections.idleTimer = idleTimer;
+            idleTimer.start();
+        }
+
+        outboundConfig = new OutboundQueue.Config(outboundHighWater, outboundLowWater, slowConsumerPolicy, slowConsumerGraceMillis, writerExecutor,
+                bufferPool);
+        metrics = new Metrics(this);
+        outboundConfig.metrics = metrics;
+        if (metricsPort > 0) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(metrics, new InetSocketAddress(metricsBindAddress, metricsPort));
+            endpoint.start();
+            drain.onStop(endpoint::stop);
+        }
         
+        chats = new ChatStore(this);
+        cluster = new Cluster(this, clusterNodeId == null ? null
+                : new TcpClusterBus(clusterNodeId, clusterPort, TcpClusterBus.parsePeers(clusterPeers), clusterQueueBytes));
+        cluster.start();
+        drain.onStop(cluster::close);
+
         db = new Database();
 
         Security.addProvider(new BouncyCastleProvider());
@@ -119,51 +450,257 @@ public class Server {
     }
 
     public static Options getOptions(String[] args) {
-        int port = 1234;
-        int threadCount = 10;
-        boolean useSSL = true;
-        String logFile = "log.txt";
+        Options options = new Options();
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-p" -> {
                     i++;
-                    port = Integer.parseInt(args[i]);
+                    options.port = Integer.parseInt(args[i]);
                 }
 
                 case "-t" -> {
                     i++;
-                    threadCount = Integer.parseInt(args[i]);
+                    options.threadCount = Integer.parseInt(args[i]);
+                }
+
+                case "--nio" -> {
+                    options.useNio = true;
+                }
+
+                case "-e" -> {
+                    i++;
+                    options.eventLoopCount = Integer.parseInt(args[i]);
+                }
+
+                case "--virtual-threads" -> {
+                    options.useVirtualThreads = true;
                 }
 
                 case "--no-ssl" -> {
-                    useSSL = false;
+                    options.useSSL = false;
                 }
 
                 case "--log-file" -> {
                     i++;
-                    logFile = args[i];
+                    options.logFile = args[i];
+                }
+
+                case "--log-max-bytes" -> {
+                    i++;
+                    options.logMaxBytes = Long.parseLong(args[i]);
+                }
+
+                case "--log-rotate" -> {
+                    i++;
+                    options.logRotateMillis = Long.parseLong(args[i]);
+                }
+
+                case "--log-keep" -> {
+                    i++;
+                    options.logKeepFiles = Integer.parseInt(args[i]);
+                }
+
+                case "--log-buffer" -> {
+                    i++;
+                    options.logBufferEvents = Integer.parseInt(args[i]);
+                }
+
+                case "--log-level" -> {
+                    i++;
+                    options.logLevel = AsyncLog.Level.valueOf(args[i].toUpperCase());
+                }
+
+                case "--trace-sample-rate" -> {
+                    i++;
+                    options.traceSampleRate = Double.parseDouble(args[i]);
+                }
+
+                case "--admin-users" -> {
+                    i++;
+                    options.adminUsers = Arrays.stream(args[i].split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                            .map(Integer::parseInt).collect(Collectors.toUnmodifiableSet());
+                }
+
+                case "--metrics-port" -> {
+                    i++;
+                    options.metricsPort = Integer.parseInt(args[i]);
+                }
+
+                case "--metrics-bind" -> {
+                    i++;
+                    options.metricsBindAddress = args[i];
+                }
+
+                case "--slow-request" -> {
+                    i++;
+                    options.slowRequestMillis = Long.parseLong(args[i]);
+                }
+
+                case "--outbound-high-water" -> {
+                    i++;
+                    options.outboundHighWater = Long.parseLong(args[i]);
+                }
+
+                case "--outbound-low-water" -> {
+                    i++;
+                    options.outboundLowWater = Long.parseLong(args[i]);
+                }
+
+                case "--slow-consumer-policy" -> {
+                    i++;
+                    options.slowConsumerPolicy = OutboundQueue.Policy.valueOf(args[i].toUpperCase());
+                }
+
+                case "--slow-consumer-grace" -> {
+                    i++;
+                    options.slowConsumerGraceMillis = Long.parseLong(args[i]);
+                }
+
+                case "--max-payload" -> {
+                    i++;
+                    options.maxPayloadSize = Integer.parseInt(args[i]);
+                }
+
+                case "--max-sequence" -> {
+                    i++;
+                    options.maxSequenceSize = Integer.parseInt(args[i]);
+                }
+
+                case "--deflate" -> {
+                    options.useDeflate = true;
+                }
+
+                case "--deflate-level" -> {
+                    i++;
+                    options.deflateLevel = Integer.parseInt(args[i]);
+                }
+
+                case "--deflate-threshold" -> {
+                    i++;
+                    options.deflateThreshold = Integer.parseInt(args[i]);
+                }
+
+                case "--deflate-context-takeover" -> {
+                    i++;
+                    options.deflateContextTakeover = DeflateExtension.ContextTakeover.valueOf(args[i].toUpperCase());
+                }
+
+                case "--max-in-flight" -> {
+                    i++;
+                    options.maxInFlightRequests = Integer.parseInt(args[i]);
+                }
+
+                case "--max-queued" -> {
+                    i++;
+                    options.maxQueuedRequests = Integer.parseInt(args[i]);
+                }
+
+                case "--handler-threads" -> {
+                    i++;
+                    options.handlerThreads = Integer.parseInt(args[i]);
+                }
+
+                case "--decoders" -> {
+                    i++;
+                    options.decoderCount = Integer.parseInt(args[i]);
+                }
+
+                case "--acceptors" -> {
+                    i++;
+                    options.acceptorCount = Integer.parseInt(args[i]);
+                }
+
+                case "--connect-rate" -> {
+                    i++;
+                    options.connectRate = Double.parseDouble(args[i]);
+                }
+
+                case "--connect-burst" -> {
+                    i++;
+                    options.connectBurst = Integer.parseInt(args[i]);
+                }
+
+                case "--max-open-connections" -> {
+                    i++;
+                    options.maxOpenConnections = Integer.parseInt(args[i]);
+                }
+
+                case "--idle-timeout" -> {
+                    i++;
+                    options.idleTimeoutMillis = Long.parseLong(args[i]);
+                }
+
+                case "--probe-timeout" -> {
+                    i++;
+                    options.probeTimeoutMillis = Long.parseLong(args[i]);
+                }
+
+                case "--drain-timeout" -> {
+                    i++;
+                    options.drainTimeoutMillis = Long.parseLong(args[i]);
+                }
+
+                case "--drain-spread" -> {
+                    i++;
+                    options.drainSpreadMillis = Long.parseLong(args[i]);
+                }
+
+                case "--reconnect-jitter" -> {
+                    i++;
+                    options.reconnectJitterMillis = Long.parseLong(args[i]);
+                }
+
+                case "--cluster-node" -> {
+                    i++;
+                    options.clusterNodeId = args[i];
+                }
+
+                case "--cluster-port" -> {
+                    i++;
+                    options.clusterPort = Integer.parseInt(args[i]);
+                }
+
+                case "--cluster-peers" -> {
+                    i++;
+                    options.clusterPeers = args[i];
+                }
+
+                case "--cluster-queue-bytes" -> {
+                    i++;
+                    options.clusterQueueBytes = Long.parseLong(args[i]);
+                }
+
+                case "--cluster-virtual-nodes" -> {
+                    i++;
+                    options.clusterVirtualNodes = Integer.parseInt(args[i]);
+                }
+
+                case "--cluster-call-timeout" -> {
+                    i++;
+                    options.clusterCallTimeoutMillis = Long.parseLong(args[i]);
                 }
 
                 default -> throw new RuntimeException("Invalid option " + args[i]);
             }
         }
 
-        return new Options(port, threadCount, useSSL, logFile);
+        return options;
     }
 
     public static void main(String[] args) throws NoSuchFieldException, IllegalAccessException, SQLException, IOException, ParseException {
         // Create the server instance from the options
         Server server = new Server(getOptions(args));
-        server.start();
+
+        if (server.useNio) new NioServer(server).start();
+        else server.start();
     }
 
+    /**
+     * @return A stream which writes each line to the log
+     */
     public PrintStream getLogStream() {
-        try {
-            return new PrintStream(new FileOutputStream(logFile));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return logger.stream("stdout", AsyncLog.Level.INFO);
     }
 
     /**
@@ -179,43 +716,105 @@ public class Server {
 
         log("Starting up...");
 
-        // This is a small worker thread which cleans the handler array by removing inactive handlers.
-        Thread cleanerThread = new HandlerCleanerThread();
-        cleanerThread.start();
-
-        ServerSocket ss = new ServerSocket(port);
+        // Accept through channels so that handlers can write pooled direct buffers straight to the socket
+        ServerSocketChannel[] listeners = openListeners(acceptorCount);
 
         log("Ready.");
 
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            Thread acceptor = new Thread(() -> {
+                try {
+                    acceptLoop(listener);
+                } catch (IOException e) {
+                    log("\033[91;3mAcceptor stopped: " + e.getClass().getName() + ": " + e.getMessage() + "\033[0m");
+                }
+            }, "Acceptor-" + i);
+
+            acceptor.start();
+        }
+
+        acceptLoop(listeners[0]);
+    }
+
+    /**
+     * Accept connections from a listening socket, passing each to a new handler thread
+     * @param ss The listening socket
+     * @throws IOException Thrown if accepting a connection fails
+     */
+    private void acceptLoop(ServerSocketChannel ss) throws IOException {
         while (true) {
             // Accept a connection and pass it to a new handler thread
-            Socket client = ss.accept();
+            SocketChannel channel;
+            try {
+                channel = ss.accept();
+            } catch (ClosedChannelException e) {
+                if (drain.isDraining()) return;
+                throw e;
+            }
+
+            // Refuse floods before doing any work for them
+            AdmissionController.Lease lease = admission.admit(channel.socket().getInetAddress());
+            if (lease == null) {
+                channel.close();
+                continue;
+            }
+
+            Socket client = channel.socket();
+            ClientHandler handler;
+            try {
+                handler = new ClientHandler(this, client);
+            } catch (IOException e) {
+                lease.release();
+                client.close();
+                continue;
+            }
+
+            handler.lease = lease;
 
             // Check if the server is allowed to accept any more connections
-            if (handlers.size() >= threadCount) {
+            if (!connections.register(handler, threadCount)) {
                 OutputStream os = client.getOutputStream();
                 os.write(Packet.createError("Server full", "The server cannot currently accept any more connections.").getBytes());
                 os.flush();
                 client.close();
+                lease.release();
                 continue;
             }
 
-            ClientHandler handler = new ClientHandler(this, client);
-            handlers.add(handler);
+            handler.active = true;
+            handler.startHandler(useVirtualThreads);
         }
     }
 
-    public void removeThread(int threadID) {
-        for (ClientHandler handler : handlers) {
-            if (handler.threadId() == threadID) {
-                handlers.remove(handler);
+    /**
+     * Open the listening sockets for the server's port. If more than one is requested, each is bound with
+     * <code>SO_REUSEPORT</code> so that they can share the port. If the platform does not support it, a single
+     * listener is opened instead.
+     * @param count The number of listeners to open
+     * @return The bound, blocking listeners
+     * @throws IOException Thrown if a listener cannot be opened or bound
+     */
+    public ServerSocketChannel[] openListeners(int count) throws IOException {
+        if (count > 1) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    log("\033[33;3mSO_REUSEPORT is not supported on this platform, using a single listener\033[0m");
+                    count = 1;
+                }
             }
         }
-    }
 
-    public void startCleaner(boolean livingHandlerMode) {
-        handlerCleaner = new HandlerCleanerThread(livingHandlerMode);
-        handlerCleaner.start();
+        ServerSocketChannel[] listeners = new ServerSocketChannel[Math.max(1, count)];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = ServerSocketChannel.open();
+            if (listeners.length > 1) listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            listeners[i].bind(new InetSocketAddress(port));
+            drain.addListener(listeners[i]);
+        }
+
+        if (listeners.length > 1) log("Listening on port " + port + " with " + listeners.length + " listeners");
+        return listeners;
     }
 
     /**
@@ -224,28 +823,71 @@ public class Server {
      * @param content The content of the push notification
      */
     public void sendPushNotification(int userId, JSONObject content) {
+        ServerEvents.PushSend event = new ServerEvents.PushSend();
+        event.begin();
+        RequestTrace.enter(RequestTrace.Stage.PUSH);
+        JSONObject[] results = null;
         try {
             PreparedStatement stmt = db.getPreparedStatement("SELECT * FROM PushSubscriptions WHERE `user` = ?");
             stmt.setInt(1, userId);
-            stmt.execute();
-            JSONObject[] results = Database.extractResultSet(stmt.getResultSet());
+            Database.execute(stmt);
+            results = Database.extractResultSet(stmt.getResultSet());
 
             for (int i = 0; i < results.length; i++) {
-                pushService.send(new Notification(
+                drain.trackPush(pushService.send(new Notification(
                         (String) results[i].get("endpoint"),
                         (String) results[i].get("key"),
                         (String) results[i].get("auth"),
                         content.toJSONString()
-                ));
+                )));
             }
         }
         catch (SQLException | JoseException | GeneralSecurityException | IOException e) {
             log("\033[91;3mAn error occurred when sending push notifications to user " + userId + ": " + e.getClass().getName() + " " + e.getMessage() + "\n" + stringifyStackTrace(e.getStackTrace()) + "\033[0m");
         }
+        finally {
+            RequestTrace.exit();
+            if (event.shouldCommit()) {
+                event.recipient = userId;
+                event.subscriptions = results == null ? 0 : results.length;
+                event.finish();
+            }
+        }
     }
 
     public static void log(Object message) {
-        System.out.println("Server: " + message);
+        log(String.valueOf(message), (Object[]) null);
+    }
+
+    /**
+     * Log an event with fields
+     * @param message The message
+     * @param fields Alternating keys and values, the values must not change after they are logged
+     */
+    public static void log(String message, Object... fields) {
+        log(AsyncLog.Level.INFO, message, fields);
+    }
+
+    /**
+     * Log an event at a level
+     * @param level The level of the event
+     * @param message The message
+     * @param fields Alternating keys and values, the values must not change after they are logged
+     */
+    public static void log(AsyncLog.Level level, String message, Object... fields) {
+        AsyncLog l = logger;
+        if (l != null) l.log(level, "Server", message, fields);
+        else System.out.println("Server: " + message);
+    }
+
+    /**
+     * Check whether a level is logged, before building a message which may not be needed
+     * @param level The level
+     * @return True if events at the level are logged
+     */
+    public static boolean isLoggable(AsyncLog.Level level) {
+        AsyncLog l = logger;
+        return l == null || l.isEnabled(level);
     }
 
     public static String stringifyStackTrace(StackTraceElement[] st) {
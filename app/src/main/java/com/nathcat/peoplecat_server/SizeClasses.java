@@ -0,0 +1,74 @@
+package com.nathcat.peoplecat_server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * <p>The power of two size classes shared by <code>BufferPool</code> and <code>PayloadPool</code>.</p>
+ * <p>
+ *     Each class holds a bounded queue of free items of exactly the class's size. Items are looked up by the number
+ *     of bytes they must hold, and sizes larger than the biggest class are never pooled.
+ * </p>
+ * @param <T> The type of item being pooled
+ */
+public class SizeClasses<T> {
+    private final int minShift;
+    private final int maxShift;
+    private final ArrayList<ArrayBlockingQueue<T>> free;
+
+    /**
+     * Create a new set of size classes
+     * @param minShift The base two logarithm of the smallest class size
+     * @param maxShift The base two logarithm of the largest class size
+     * @param perClass The maximum number of free items to keep in each class
+     */
+    public SizeClasses(int minShift, int maxShift, int perClass) {
+        this.minShift = minShift;
+        this.maxShift = maxShift;
+        free = new ArrayList<>(maxShift - minShift + 1);
+        for (int i = minShift; i <= maxShift; i++) {
+            free.add(new ArrayBlockingQueue<>(perClass));
+        }
+    }
+
+    /**
+     * Get the index of the smallest size class which can hold the given number of bytes
+     * @return The size class index, or -1 if the size is too large to be pooled
+     */
+    public int classFor(int size) {
+        if (size <= 1 << minShift) return 0;
+
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > maxShift ? -1 : shift - minShift;
+    }
+
+    /**
+     * @param c A size class index
+     * @return The size, in bytes, of items in the given class
+     */
+    public int sizeOf(int c) {
+        return 1 << (c + minShift);
+    }
+
+    /**
+     * Take a free item from a size class
+     * @param c The size class index
+     * @return The item, or null if the class is empty
+     */
+    public T poll(int c) {
+        return free.get(c).poll();
+    }
+
+    /**
+     * Return an item to the class matching its size. Items which are not exactly the size of a class are ignored.
+     * @param item The item to return
+     * @param size The item's size in bytes
+     */
+    public void offer(T item, int size) {
+        int c = classFor(size);
+        if (c == -1 || sizeOf(c) != size) return;
+
+        // If the class is already full the item is simply left for the garbage collector
+        free.get(c).offer(item);
+    }
+}
@@ -0,0 +1,285 @@
+package com.nathcat.peoplecat_server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A cluster bus which connects nodes over TCP. Running several nodes on the loopback interface with different
+ * ports is enough to try out a cluster on one machine.</p>
+ * <p>
+ *     Every node listens on its cluster port and dials every peer it is configured with, so each pair of nodes has
+ *     two connections, each carrying messages in one direction. A connection starts with the ID of the node which
+ *     dialled it, and every message is sent as a 4 byte length followed by the message. Each peer has a sender thread
+ *     which writes every message queued since its last write with one gathering write, and redials with a growing
+ *     delay whenever the connection is lost.
+ * </p>
+ * <p>
+ *     Whether a peer is connected is decided by the connection this node dialled alone, so the listener always sees
+ *     a peer connect and disconnect in turn. Losing the connection a peer dialled means the peer has gone away or
+ *     restarted, so the dialled connection is dropped too and redialled, which reports the peer as disconnected and,
+ *     once the redial succeeds, connected again.
+ * </p>
+ */
+public class TcpClusterBus implements ClusterBus {
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final String nodeId;
+    private final int port;
+    private final Map<String, InetSocketAddress> peerAddresses;
+    private final ConcurrentHashMap<String, PeerQueue> peers = new ConcurrentHashMap<>();
+    /**
+     * The connection each peer is currently sending to this node over
+     */
+    private final ConcurrentHashMap<String, SocketChannel> inbound = new ConcurrentHashMap<>();
+    /**
+     * The connection this node is currently sending to each peer over
+     */
+    private final ConcurrentHashMap<String, SocketChannel> outbound = new ConcurrentHashMap<>();
+    private ServerSocketChannel listenerChannel;
+    private volatile Listener listener;
+    private volatile boolean closed = false;
+
+    /**
+     * @param nodeId The ID of this node
+     * @param port The port to listen for peers on
+     * @param peerAddresses The ID and cluster address of every other node
+     * @param maxQueuedBytes The most bytes which may be waiting to be sent to each peer
+     */
+    public TcpClusterBus(String nodeId, int port, Map<String, InetSocketAddress> peerAddresses, long maxQueuedBytes) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peerAddresses = peerAddresses;
+
+        for (String peer : peerAddresses.keySet()) {
+            peers.put(peer, new PeerQueue(peer, maxQueuedBytes));
+        }
+    }
+
+    /**
+     * Parse a list of peers
+     * @param spec Comma separated peers, each in the form <code>id=host:port</code>
+     * @return The address of each peer, by ID
+     */
+    public static Map<String, InetSocketAddress> parsePeers(String spec) {
+        LinkedHashMap<String, InetSocketAddress> result = new LinkedHashMap<>();
+        if (spec == null || spec.isBlank()) return result;
+
+        for (String entry : spec.split(",")) {
+            int eq = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (eq < 1 || colon < eq) throw new IllegalArgumentException("Invalid peer " + entry + ", expected id=host:port");
+
+            result.put(entry.substring(0, eq).trim(), new InetSocketAddress(entry.substring(eq + 1, colon).trim(),
+                    Integer.parseInt(entry.substring(colon + 1).trim())));
+        }
+
+        return result;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+
+        listenerChannel = ServerSocketChannel.open();
+        listenerChannel.bind(new InetSocketAddress(port));
+        startThread("ClusterAcceptor", this::acceptLoop);
+
+        for (Map.Entry<String, InetSocketAddress> entry : peerAddresses.entrySet()) {
+            PeerQueue queue = peers.get(entry.getKey());
+            startThread("ClusterSender-" + entry.getKey(), () -> sendLoop(queue, entry.getValue()));
+        }
+
+        Server.log("Cluster node " + nodeId + " listening on port " + port + " with " + peers.size() + " peers");
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = listenerChannel.accept();
+                startThread("ClusterReceiver", () -> receive(channel));
+            } catch (IOException e) {
+                if (!closed) Server.log("\033[91;3mCluster accept failed: " + e.getMessage() + "\033[0m");
+            }
+        }
+    }
+
+    /**
+     * Read messages from a peer until the connection is lost
+     */
+    private void receive(SocketChannel channel) {
+        String peer = null;
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            peer = new String(readMessage(in), StandardCharsets.UTF_8);
+
+            // A peer which has reconnected replaces its old connection, which may not have noticed it is dead yet. The
+            // peer has most likely restarted, so the connection to it is redialled too, since otherwise it would stay
+            // open until a write to it failed and the peer would never be told this node is connected.
+            SocketChannel previous = inbound.put(peer, channel);
+            if (previous != null) {
+                previous.close();
+                resetOutbound(peer);
+            }
+
+            while (!closed) {
+                listener.onMessage(peer, ByteBuffer.wrap(readMessage(in)));
+            }
+        } catch (IOException ignored) {
+        } finally {
+            if (peer != null && inbound.remove(peer, channel) && !closed) {
+                Server.log("Lost cluster connection from " + peer);
+                resetOutbound(peer);
+            }
+        }
+    }
+
+    /**
+     * Drop the connection to a peer, so that its sender redials it and reports whether it is still there
+     */
+    private void resetOutbound(String peer) {
+        SocketChannel channel = outbound.get(peer);
+        if (channel == null) return;
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+
+        PeerQueue queue = peers.get(peer);
+        if (queue != null) queue.wake();
+    }
+
+    private static byte[] readMessage(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) throw new IOException("Invalid cluster message length " + length);
+
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return message;
+    }
+
+    /**
+     * Keep a connection to a peer open and write its queued messages to it
+     */
+    private void sendLoop(PeerQueue queue, InetSocketAddress address) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            SocketChannel current = null;
+            try (SocketChannel channel = SocketChannel.open()) {
+                channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                byte[] id = nodeId.getBytes(StandardCharsets.UTF_8);
+                writeFully(channel, new ByteBuffer[] { frameHeader(id.length), ByteBuffer.wrap(id) });
+
+                current = channel;
+                outbound.put(queue.peer, channel);
+                queue.setConnected(true);
+                Server.log("Connected to cluster peer " + queue.peer + " at " + address);
+                listener.onPeerConnected(queue.peer);
+                backoff = MIN_BACKOFF_MILLIS;
+
+                ArrayList<ByteBuffer> batch;
+                while ((batch = queue.takeBatch(MAX_BATCH_BYTES)) != null) {
+                    // Woken because the peer's own connection was lost
+                    if (!channel.isOpen()) throw new ClosedChannelException();
+
+                    ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+                    for (int i = 0; i < batch.size(); i++) {
+                        buffers[2 * i] = frameHeader(batch.get(i).remaining());
+                        buffers[2 * i + 1] = batch.get(i);
+                    }
+
+                    writeFully(channel, buffers);
+                }
+
+                return;
+            } catch (IOException e) {
+                if (current != null && !closed) Server.log("Lost cluster connection to " + queue.peer + ": " + e);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (current != null) {
+                    outbound.remove(queue.peer, current);
+                    queue.setConnected(false);
+                    if (!closed) listener.onPeerDisconnected(queue.peer);
+                }
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private static ByteBuffer frameHeader(int length) {
+        return ByteBuffer.allocate(4).putInt(0, length);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    @Override
+    public boolean send(String peer, ByteBuffer message) {
+        PeerQueue queue = peers.get(peer);
+        return queue != null && queue.offer(message);
+    }
+
+    @Override
+    public Collection<PeerQueue> peers() {
+        return peers.values();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            if (listenerChannel != null) listenerChannel.close();
+        } catch (IOException ignored) {}
+
+        for (PeerQueue queue : peers.values()) queue.close();
+        for (SocketChannel channel : inbound.values()) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -304,8 +304,9 @@ public class WebSocketAdapter {
      * @return A byte array containing the fragment data to be sent through the websocket.
      */
     public static byte[] createMessageBuffer(Packet packet) {
+        // Copy the packet's data, since it is shared with anything else holding the packet
         JSONObject packetData = packet.getData();
-        if (packetData == null) packetData = new JSONObject();
+        packetData = packetData == null ? new JSONObject() : new JSONObject(packetData);
         packetData.put("type", packet.type);
         packetData.put("isFinal", packet.isFinal ? 1 : 0);
 
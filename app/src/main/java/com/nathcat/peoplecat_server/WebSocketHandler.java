@@ -6,6 +6,9 @@ import com.nathcat.peoplecat_server.ssl.SSLProviderFactory;
 import nl.altindag.ssl.SSLFactory;
 import nl.altindag.ssl.pem.util.PemUtils;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
 import org.java_websocket.server.DefaultWebSocketServerFactory;
@@ -25,8 +28,8 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Acts as an alternative to the Server class. This class uses websockets to handle connections to clients, where the
@@ -35,7 +38,7 @@ import java.util.HashMap;
  */
 public class WebSocketHandler extends WebSocketServer {
     public Server server;
-    private final HashMap<WebSocket, ClientHandler> sockHandlerMap;
+    private final ConcurrentHashMap<WebSocket, ClientHandler> sockHandlerMap;
 
     public static void main(String[] args) throws SQLException, IOException, ParseException, NoSuchFieldException, IllegalAccessException, NoSuchAlgorithmException, KeyStoreException, CertificateException, UnrecoverableKeyException, KeyManagementException {
 
@@ -62,10 +65,12 @@ public class WebSocketHandler extends WebSocketServer {
             }
 
             // Start the server with the given SSL parameters
-            webSocketHandler.setWebSocketFactory(new DefaultSSLWebSocketServerFactory(sslContext));
+            webSocketHandler.setWebSocketFactory(new AdmittingWebSocketServerFactory(
+                    new DefaultSSLWebSocketServerFactory(sslContext), webSocketHandler.server.admission));
         }
         else {
-            webSocketHandler.setWebSocketFactory(new DefaultWebSocketServerFactory());
+            webSocketHandler.setWebSocketFactory(new AdmittingWebSocketServerFactory(
+                    new DefaultWebSocketServerFactory(), webSocketHandler.server.admission));
             webSocketHandler.server.log("\033[33;3mRunning in no-SSL mode!\033[0m");
         }
 
@@ -73,43 +78,103 @@ public class WebSocketHandler extends WebSocketServer {
     }
 
     public WebSocketHandler(Server s) {
-        super(new InetSocketAddress(s.port));
+        super(new InetSocketAddress(s.port), s.decoderCount, List.of(createDraft(s)));
         server = s;
-        sockHandlerMap = new HashMap<>();
+        sockHandlerMap = new ConcurrentHashMap<>();
+
+        // The idle timer probes websockets itself, without walking every connection on each check
+        if (s.idleTimer != null) setConnectionLostTimeout(0);
+
+        // New connections are already refused by admission control while draining, so the listener only needs to be
+        // closed once every connection has been
+        s.drain.onStop(() -> {
+            try {
+                stop(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Create the websocket draft used for every connection, offering permessage-deflate if it is enabled
+     * @param s The server instance
+     * @return The draft
+     */
+    private static Draft createDraft(Server s) {
+        if (!s.useDeflate) return new Draft_6455();
+
+        return new Draft_6455(new DeflateExtension(s.deflateLevel, s.deflateThreshold, s.deflateContextTakeover, s.deflateTotals));
+    }
+
+    /**
+     * Get the permessage-deflate extension negotiated by a connection
+     * @param webSocket The connection
+     * @return The extension, or null if the connection is not using compression
+     */
+    public static DeflateExtension getDeflateExtension(WebSocket webSocket) {
+        if (webSocket.getDraft() instanceof Draft_6455 draft && draft.getExtension() instanceof DeflateExtension extension) {
+            return extension;
+        }
+
+        return null;
     }
 
 
     @Override
     public void onOpen(org.java_websocket.WebSocket webSocket, ClientHandshake clientHandshake) {
-        server.log("Connection received");
+        server.log(AsyncLog.Level.DEBUG, "Connection received");
+
+        server.log(AsyncLog.Level.DEBUG, "Trying to accept connection");
+        ClientHandler h;
+        try {
+            h = new ClientHandler(server, webSocket, new WebSocketOutputStream(webSocket), new WebSocketInputStream(webSocket));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
         // If the server is full close the connection
-        if (server.handlers.size() >= server.threadCount) {
+        if (!server.connections.register(h, server.threadCount)) {
             server.log("Server is full, rejecting connection");
             webSocket.send("Server is full!");
             webSocket.close();
+            return;
         }
-        else {  // ... otherwise link the connection to a new client handler
-            server.log("Trying to accept connection");
-            try {
-                ClientHandler h = new ClientHandler(server, webSocket, new WebSocketOutputStream(webSocket), new WebSocketInputStream(webSocket));
-                sockHandlerMap.put(webSocket, h);
-                h.active = true;
-                server.handlers.add(h);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
 
-            server.log("Accepted connection into handler");
-        }
+        // ... otherwise link the connection to the new client handler
+        sockHandlerMap.put(webSocket, h);
+        h.active = true;
+
+        server.log(AsyncLog.Level.DEBUG, "Accepted connection into handler");
     }
 
     @Override
     public void onClose(org.java_websocket.WebSocket webSocket, int i, String s, boolean b) {
-        // Close the relevant client handler
+        // Close the relevant client handler, rejected connections will not have one
+        ClientHandler h = sockHandlerMap.remove(webSocket);
+        if (h != null) {
+            DeflateExtension deflate = getDeflateExtension(webSocket);
+            if (deflate != null) h.log("Compression: " + deflate);
+
+            h.close();
+        }
+    }
+
+    @Override
+    public void onWebsocketPong(WebSocket webSocket, Framedata f) {
         ClientHandler h = sockHandlerMap.get(webSocket);
-        h.close();
-        sockHandlerMap.remove(webSocket);
+        if (h != null) {
+            h.probeOutstanding = false;
+            h.markActivity();
+        }
+    }
+
+    @Override
+    protected boolean removeConnection(WebSocket webSocket) {
+        // Called for every closed websocket, including those which never completed their handshake
+        if (webSocket.getAttachment() instanceof AdmissionController.Lease lease) lease.release();
+
+        return super.removeConnection(webSocket);
     }
 
     @Override
@@ -130,10 +195,10 @@ public class WebSocketHandler extends WebSocketServer {
     public void onMessage(WebSocket conn, ByteBuffer message) {
         ClientHandler h = sockHandlerMap.get(conn);
         try {
-            handlePacket(
-                    conn,
-                    new Packet(new ByteArrayInputStream(message.array()))
-            );
+            Packet p = Packet.readFrom(message, server.payloadPool);
+            if (p == null) throw new IOException("Incomplete packet");
+
+            handlePacket(conn, p);
 
         } catch (Exception e) {
             h.writePacket(Packet.createError(e.getClass().getName(), e.getMessage()));
@@ -165,26 +230,33 @@ Version\s""" + Server.version + "\n" + """
 Developed by Nathcat 2024""");
 
         Server.log("Running in websocket mode!");
-
-        server.startCleaner(false);
     }
 
     public void handlePacket(WebSocket conn, Packet p) {
         ClientHandler h = sockHandlerMap.get(conn);
-        h.log("Got packet from socket: " + p);
         try {
             WebSocketInputStream is = (WebSocketInputStream) h.inStream;
             is.pushPacket(p);
 
+            if (!p.isFinal) {
+                try {
+                    server.payloadPool.checkSequenceSize(is.queuedBytes());
+                } catch (IOException e) {
+                    is.clear();
+                    h.log("\033[91;3m" + e.getMessage() + ", closing connection\033[0m");
+                    conn.close();
+                    return;
+                }
+            }
+
             ArrayList<Packet> packetList = new ArrayList<>();
             if (p.isFinal) {
                 while (is.available() > 0) {
                     packetList.add(is.getNextPacket());
                 }
 
-                Packet[] response = h.packetHandler.handle(h, packetList.toArray(new Packet[0]));
-                ((WebSocketOutputStream) h.outStream).write(response);
-                h.log("Written response: " + Arrays.toString(response));
+                Packet[] sequence = packetList.toArray(new Packet[0]);
+                h.dispatch(sequence);
             }
         }
         catch (Exception e) {
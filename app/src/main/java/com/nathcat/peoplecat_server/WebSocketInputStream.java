@@ -11,6 +11,10 @@ import java.util.Queue;
 public class WebSocketInputStream extends InputStream {
     private Queue<Packet> queue = new LinkedList<>();
     private ByteArrayInputStream currentPacketStream;
+    /**
+     * Total size of the queued packets, headers included
+     */
+    private long queuedBytes = 0;
     public final WebSocket socket;
 
     public WebSocketInputStream(WebSocket socket) { this.socket = socket; }
@@ -22,16 +26,34 @@ public class WebSocketInputStream extends InputStream {
 
     public void pushPacket(Packet p) {
         queue.add(p);
+        queuedBytes += Packet.HEADER_SIZE + p.length;
     }
 
     public Packet getNextPacket() {
-        return queue.remove();
+        Packet p = queue.remove();
+        queuedBytes -= Packet.HEADER_SIZE + p.length;
+        return p;
+    }
+
+    /**
+     * @return The total size of the queued packets, headers included
+     */
+    public long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Discard every queued packet, returning their payloads to the pool
+     */
+    public void clear() {
+        while (!queue.isEmpty()) queue.remove().release();
+        queuedBytes = 0;
     }
 
     private void updateCurrentPacket() {
         if (currentPacketStream == null || currentPacketStream.available() == 0) {
             if (!queue.isEmpty()) {
-                currentPacketStream = new ByteArrayInputStream(queue.remove().getBytes());
+                currentPacketStream = new ByteArrayInputStream(getNextPacket().getBytes());
             }
             else {
                 currentPacketStream = null;
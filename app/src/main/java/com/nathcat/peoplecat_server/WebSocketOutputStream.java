@@ -1,12 +1,21 @@
 package com.nathcat.peoplecat_server;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.DefaultExtension;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.Framedata;
 import org.json.simple.JSONObject;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Allows output of a packet through a websocket
@@ -25,13 +34,13 @@ public class WebSocketOutputStream extends OutputStream {
      * @return A byte array containing the fragment data to be sent through the websocket.
      */
     private static byte[] createMessageBuffer(Packet packet) {
+        // Copy the packet's data, since it is shared with anything else holding the packet
         JSONObject packetData = packet.getData();
-        if (packetData == null) packetData = new JSONObject();
+        packetData = packetData == null ? new JSONObject() : new JSONObject(packetData);
         packetData.put("type", packet.type);
         packetData.put("isFinal", packet.isFinal ? 1 : 0);
 
-        SecureRandom rng = new SecureRandom();
-        return packetData.toJSONString().getBytes();
+        return JsonWriter.toBytes(packetData);
     }
 
     @Override
@@ -55,6 +64,56 @@ public class WebSocketOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Check whether complete frames can be queued on the websocket directly. This is not possible once an extension
+     * which transforms frames, such as permessage-deflate, has been negotiated.
+     * @return True if complete frames can be queued
+     */
+    public boolean acceptsFrames() {
+        return socket instanceof WebSocketImpl
+                && socket.getDraft() instanceof Draft_6455 draft
+                && draft.getExtension().getClass() == DefaultExtension.class;
+    }
+
+    /**
+     * Write several encoded packets to the websocket at once. Each packet is still sent as its own message, but the
+     * frames are handed to the websocket together so they are queued and written in a single pass. The websocket
+     * copies the payloads into its own frame buffers before this returns, so the given buffers may be reused
+     * afterwards.
+     * If the websocket accepts complete frames, read-only buffers are taken to be shared broadcast frames and are
+     * queued as they are, in order with the packets around them.
+     * @param batch The encoded packets to write
+     */
+    public void write(List<ByteBuffer> batch) {
+        boolean framed = acceptsFrames();
+        boolean queued = false;
+
+        ArrayList<Framedata> frames = new ArrayList<>(batch.size());
+        for (ByteBuffer b : batch) {
+            if (framed && b.isReadOnly()) {
+                // Hand over anything before the frame first so it keeps its place
+                if (!frames.isEmpty()) {
+                    socket.sendFrame(frames);
+                    frames.clear();
+                }
+
+                WebSocketImpl impl = (WebSocketImpl) socket;
+                if (!impl.isOpen()) throw new WebsocketNotConnectedException();
+
+                impl.outQueue.add(b);
+                queued = true;
+                continue;
+            }
+
+            BinaryFrame frame = new BinaryFrame();
+            frame.setPayload(b);
+            frames.add(frame);
+        }
+
+        if (!frames.isEmpty()) socket.sendFrame(frames);
+        if (queued) ((WebSocketImpl) socket).getWebSocketListener().onWriteDemand(socket);
+    }
+
     @Override
     public void flush() { /* Do nothing, this stream does not buffer any data */ }
 }